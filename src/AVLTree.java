@@ -0,0 +1,1231 @@
+//HLDZUH001
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Class representing a node in an AVL tree.
+ *
+ * @param <K> The type of the key the node is ordered by.
+ * @param <V> The type of the value stored in the node.
+ */
+class AVLNode<K, V> {
+    K key; // Key the node is ordered by
+    V value; // Value stored in the node
+    AVLNode<K, V> left; // Reference to the left child node
+    AVLNode<K, V> right; // Reference to the right child node
+    int height; // Height of the node in the AVL tree
+    int size; // Number of nodes in the subtree rooted here
+    AVLNode<K, V> best; // Node with the highest-priority value in the subtree, if the tree ranks values
+
+    /**
+     * Constructs an AVLNode with the given key and value.
+     *
+     * @param key   Key the node is ordered by.
+     * @param value Value that will be stored in the node.
+     */
+    public AVLNode(K key, V value) {
+        this.key = key;
+        this.value = value;
+        left = right = null;
+        height = 1;
+        size = 1;
+        best = this;
+    }
+
+    /**
+     * Constructs a copy of a node, with the same key, value, children and height.
+     *
+     * @param node The node to copy.
+     */
+    public AVLNode(AVLNode<K, V> node) {
+        key = node.key;
+        value = node.value;
+        left = node.left;
+        right = node.right;
+        height = node.height;
+        size = node.size;
+        best = node.best == node ? this : node.best;
+    }
+}
+
+/**
+ * Class representing an AVL tree that maps each key to a single value.
+ * Writers are serialized. In copy-on-write mode they never change a published node: each
+ * write copies the path it touches and publishes the new root with a single volatile write,
+ * so readers can search lock-free alongside a writer and always see a consistent tree.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+class AVLTree<K extends Comparable<K>, V> implements OrderedIndex<K, V> {
+    // Inputs at least this large are sorted on all cores during a bulk load
+    private static final int PARALLEL_SORT_THRESHOLD = 1 << 13;
+    // Number of sorted query keys each parallel lookup task resolves
+    private static final int PARALLEL_LOOKUP_CHUNK = 512;
+
+    volatile AVLNode<K, V> root; // Root node of the AVL tree
+    private final BinaryOperator<V> mergePolicy; // Decides which value a key keeps when it is put again
+    private final boolean copyOnWrite; // Whether writes copy nodes instead of changing them in place
+    private final Comparator<? super V> priority; // Ranks values for topK, or null if they are not ranked
+    private volatile int size = 0; // Number of keys stored in the tree
+    private volatile boolean frozen = false; // Whether the tree has been made read-only
+    private final LongAdder searchOpCount; // Counter for search operations, safe across threads
+    private int insertOpCount = 0; // Counter for insert operations
+    private TreeInstrumentation instrumentation = null; // Optional hook told about every operation
+    // Nodes visited on the way down during an insert or remove, reused across calls.
+    // An AVL tree of height 64 would need more nodes than fit in memory.
+    private final AVLNode<K, V>[] path = newNodeArray(64);
+
+    /**
+     * Constructs an empty AVL tree in which putting a key again replaces its value.
+     */
+    public AVLTree() {
+        this((existing, incoming) -> incoming);
+    }
+
+    /**
+     * Constructs an empty AVL tree with the given merge policy.
+     *
+     * @param mergePolicy Function given the existing and the incoming value for a key, returning the one to keep.
+     */
+    public AVLTree(BinaryOperator<V> mergePolicy) {
+        this(mergePolicy, false);
+    }
+
+    /**
+     * Constructs an empty AVL tree with the given merge policy, optionally in copy-on-write mode.
+     *
+     * @param mergePolicy Function given the existing and the incoming value for a key, returning the one to keep.
+     * @param copyOnWrite Whether writes should copy the nodes they change, so readers never need to lock.
+     */
+    public AVLTree(BinaryOperator<V> mergePolicy, boolean copyOnWrite) {
+        this(mergePolicy, copyOnWrite, null);
+    }
+
+    /**
+     * Constructs an empty AVL tree that also ranks its values, so the highest-ranked values in
+     * a range of keys can be found with topK. Every node then tracks the best value below it.
+     *
+     * @param mergePolicy Function given the existing and the incoming value for a key, returning the one to keep.
+     * @param copyOnWrite Whether writes should copy the nodes they change, so readers never need to lock.
+     * @param priority    Order in which values rank, highest last, or null to not rank them.
+     */
+    public AVLTree(BinaryOperator<V> mergePolicy, boolean copyOnWrite, Comparator<? super V> priority) {
+        this(mergePolicy, copyOnWrite, priority, new LongAdder());
+    }
+
+    private AVLTree(BinaryOperator<V> mergePolicy, boolean copyOnWrite, Comparator<? super V> priority,
+            LongAdder searchOpCount) {
+        root = null;
+        this.mergePolicy = mergePolicy;
+        this.copyOnWrite = copyOnWrite;
+        this.priority = priority;
+        this.searchOpCount = searchOpCount;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the height of the tree: the number of nodes on its longest path from the root.
+     * An AVL tree of n keys is never taller than about 1.44 log2(n + 2).
+     *
+     * @return The height, 0 for an empty tree.
+     */
+    public int getHeight() {
+        return getHeight(root);
+    }
+
+    public int getSearchOpCount() {
+        return searchOpCount.intValue();
+    }
+
+    public int getInsertOpCount() {
+        return insertOpCount;
+    }
+
+    public void resetSearchOpCount() {
+        searchOpCount.reset();
+    }
+
+    public void resetInsertOpCount() {
+        insertOpCount = 0;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    public boolean isCopyOnWrite() {
+        return copyOnWrite;
+    }
+
+    public TreeInstrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    /**
+     * Sets the hook told about every search, insert, remove and rotation. With no hook set,
+     * which is the default, the only cost is one null check per operation. The hook should
+     * be set before the tree is shared between threads.
+     *
+     * @param instrumentation The hook, or null to switch instrumentation off.
+     */
+    public void setInstrumentation(TreeInstrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
+    /**
+     * Returns a frozen view of the tree as it is now. It shares every node with this tree,
+     * so taking it costs O(1), and later writes to this tree do not show through. Searches
+     * on the view are counted with this tree's and reported to the same instrumentation.
+     *
+     * @return The snapshot.
+     * @throws IllegalStateException If the tree is neither frozen nor in copy-on-write mode.
+     */
+    public AVLTree<K, V> snapshot() {
+        if (!frozen && !copyOnWrite) {
+            throw new IllegalStateException("Only a frozen or copy-on-write AVL tree can be snapshotted");
+        }
+        synchronized (this) {
+            AVLTree<K, V> snapshot = new AVLTree<>(mergePolicy, true, priority, searchOpCount);
+            snapshot.root = root;
+            snapshot.size = size;
+            snapshot.instrumentation = instrumentation;
+            snapshot.frozen = true;
+            return snapshot;
+        }
+    }
+
+    /**
+     * Makes the tree read-only. Every later put or remove throws, so the tree can be shared
+     * between threads without locking. The volatile write publishes all earlier changes to
+     * any thread that later checks isFrozen(); tasks handed to an executor afterwards see them too.
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("The AVL tree is frozen and cannot be modified");
+        }
+    }
+
+    /**
+     * Puts a value into the AVL tree under a key. If the key is already present,
+     * the merge policy decides which value is kept.
+     *
+     * @param key   Key to store the value under.
+     * @param value Value to be inserted.
+     */
+    public synchronized void put(K key, V value) {
+        checkNotFrozen();
+        TreeInstrumentation probe = instrumentation;
+        long start = probe != null ? System.nanoTime() : 0;
+        AVLNode<K, V> node = root;
+        int depth = 0;
+        int comparisonResult = 0;
+
+        // Descend to the insertion point, one comparison per level
+        while (node != null) {
+            comparisonResult = key.compareTo(node.key);
+            if (comparisonResult == 0) {
+                // Key already present, keep one value
+                path[depth++] = node;
+                copyPath(depth);
+                path[depth - 1].value = mergePolicy.apply(node.value, value);
+                root = retrace(depth); // Heights are unchanged, but the best value below may not be
+                if (probe != null) {
+                    probe.inserted(depth, false, System.nanoTime() - start);
+                }
+                return;
+            }
+            insertOpCount++;
+            path[depth++] = node;
+            node = comparisonResult < 0 ? node.left : node.right;
+        }
+
+        insertOpCount++;
+        AVLNode<K, V> newNode = new AVLNode<>(key, value);
+        if (depth == 0) {
+            root = newNode;
+        } else {
+            copyPath(depth);
+            if (comparisonResult < 0) {
+                path[depth - 1].left = newNode;
+            } else {
+                path[depth - 1].right = newNode;
+            }
+            root = retrace(depth);
+        }
+        size++;
+        if (probe != null) {
+            probe.inserted(depth + 1, true, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Bulk loads values into the AVL tree. The values are sorted by key (skipped when they
+     * are already in order), values sharing a key are merged with the merge policy, and the
+     * tree is rebuilt perfectly balanced in linear time instead of rotating on every insert.
+     * Any values already in the tree are merged in as the existing value for their key.
+     * Bulk loading counts one insert operation per node it places, and reports each node to the
+     * instrumentation as an insert at its depth in the new tree.
+     *
+     * @param values Values to be loaded, in any order.
+     * @param keyOf  Function extracting the key each value is stored under.
+     */
+    public synchronized void putAll(List<? extends V> values, Function<? super V, ? extends K> keyOf) {
+        checkNotFrozen();
+        AVLNode<K, V>[] incoming = newNodeArray(values.size());
+        for (int i = 0; i < incoming.length; i++) {
+            V value = values.get(i);
+            incoming[i] = new AVLNode<>(keyOf.apply(value), value);
+        }
+        load(incoming);
+    }
+
+    /**
+     * Bulk loads keys and values into the AVL tree, as putAll(values, keyOf) does.
+     *
+     * @param entries Keys and values to be loaded, in any order.
+     */
+    public synchronized void putAll(List<? extends Map.Entry<? extends K, ? extends V>> entries) {
+        checkNotFrozen();
+        AVLNode<K, V>[] incoming = newNodeArray(entries.size());
+        for (int i = 0; i < incoming.length; i++) {
+            Map.Entry<? extends K, ? extends V> entry = entries.get(i);
+            incoming[i] = new AVLNode<>(entry.getKey(), entry.getValue());
+        }
+        load(incoming);
+    }
+
+    /**
+     * Sorts, merges and builds new nodes into the tree, replacing the root.
+     *
+     * @param incoming The new nodes, in any order.
+     */
+    private void load(AVLNode<K, V>[] incoming) {
+        TreeInstrumentation probe = instrumentation;
+        long start = probe != null ? System.nanoTime() : 0;
+        if (!isSortedByKey(incoming)) {
+            Comparator<AVLNode<K, V>> byKey = (a, b) -> a.key.compareTo(b.key);
+            if (incoming.length >= PARALLEL_SORT_THRESHOLD) {
+                Arrays.parallelSort(incoming, byKey);
+            } else {
+                Arrays.sort(incoming, byKey); // Both sorts are stable, so equal keys stay in input order
+            }
+        }
+        int count = mergeDuplicates(incoming);
+        if (root != null) {
+            incoming = mergeSorted(inOrderNodes(), incoming, count);
+            count = incoming.length;
+        }
+
+        AVLNode<K, V> built = build(incoming, 0, count);
+        root = built; // A new tree, so this is copy-on-write safe too
+        size = count;
+        insertOpCount += count;
+        if (probe != null) {
+            reportLoad(probe, built, 1, (System.nanoTime() - start) / Math.max(1, count));
+        }
+    }
+
+    /**
+     * Reports every node of a subtree a bulk load built as an insert at its depth, each given an
+     * equal share of the load's time, since the nodes are placed without one search apiece.
+     *
+     * @param probe The instrumentation.
+     * @param node  The root of the subtree.
+     * @param depth The depth of the root of the subtree, 1 at the root of the tree.
+     * @param nanos The share of the load's time given to each node.
+     */
+    private static void reportLoad(TreeInstrumentation probe, AVLNode<?, ?> node, int depth, long nanos) {
+        if (node != null) {
+            probe.inserted(depth, true, nanos);
+            reportLoad(probe, node.left, depth + 1, nanos);
+            reportLoad(probe, node.right, depth + 1, nanos);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> AVLNode<K, V>[] newNodeArray(int length) {
+        return (AVLNode<K, V>[]) new AVLNode<?, ?>[length];
+    }
+
+    private static <K extends Comparable<K>> boolean isSortedByKey(AVLNode<K, ?>[] nodes) {
+        for (int i = 1; i < nodes.length; i++) {
+            if (nodes[i - 1].key.compareTo(nodes[i].key) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Folds each run of nodes sharing a key down to one node using the merge policy.
+     *
+     * @param nodes Nodes in key order, compacted in place.
+     * @return The number of distinct keys left at the front of the array.
+     */
+    private int mergeDuplicates(AVLNode<K, V>[] nodes) {
+        int count = 0;
+        for (AVLNode<K, V> node : nodes) {
+            if (count > 0 && nodes[count - 1].key.compareTo(node.key) == 0) {
+                nodes[count - 1].value = mergePolicy.apply(nodes[count - 1].value, node.value);
+            } else {
+                nodes[count++] = node;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Merges two arrays of nodes with distinct keys in key order, applying the merge policy where a key is in both.
+     *
+     * @param existing      Nodes already in the tree.
+     * @param incoming      Nodes being loaded.
+     * @param incomingCount Number of nodes at the front of the incoming array to use.
+     * @return The merged nodes.
+     */
+    private AVLNode<K, V>[] mergeSorted(AVLNode<K, V>[] existing, AVLNode<K, V>[] incoming, int incomingCount) {
+        AVLNode<K, V>[] merged = newNodeArray(existing.length + incomingCount);
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < existing.length && j < incomingCount) {
+            int comparisonResult = existing[i].key.compareTo(incoming[j].key);
+            if (comparisonResult < 0) {
+                merged[count++] = existing[i++];
+            } else if (comparisonResult > 0) {
+                merged[count++] = incoming[j++];
+            } else {
+                incoming[j].value = mergePolicy.apply(existing[i++].value, incoming[j].value);
+                merged[count++] = incoming[j++];
+            }
+        }
+        while (i < existing.length) {
+            merged[count++] = existing[i++];
+        }
+        while (j < incomingCount) {
+            merged[count++] = incoming[j++];
+        }
+        return count == merged.length ? merged : Arrays.copyOf(merged, count);
+    }
+
+    /**
+     * Collects fresh copies of the nodes in the tree in key order, so a rebuild never
+     * changes a node a reader may still be using.
+     *
+     * @return The copied nodes in key order.
+     */
+    private AVLNode<K, V>[] inOrderNodes() {
+        AVLNode<K, V>[] nodes = newNodeArray(size);
+        int count = 0;
+        Deque<AVLNode<K, V>> stack = new ArrayDeque<>();
+        AVLNode<K, V> node = root;
+        while (node != null || !stack.isEmpty()) {
+            while (node != null) {
+                stack.push(node);
+                node = node.left;
+            }
+            node = stack.pop();
+            nodes[count++] = new AVLNode<>(node.key, node.value);
+            node = node.right;
+        }
+        return nodes;
+    }
+
+    /**
+     * Builds a perfectly balanced subtree by linking a range of nodes in key order. The recursion
+     * depth is the height of the result, at most 32 levels for any array.
+     *
+     * @param nodes Unlinked nodes in key order.
+     * @param from  Index of the first node in the range.
+     * @param to    Index one past the last node in the range.
+     * @return The root of the subtree, or null if the range is empty.
+     */
+    private AVLNode<K, V> build(AVLNode<K, V>[] nodes, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+        int mid = (from + to) >>> 1;
+        AVLNode<K, V> node = nodes[mid];
+        node.left = build(nodes, from, mid);
+        node.right = build(nodes, mid + 1, to);
+        update(node);
+        return node;
+    }
+
+    /**
+     * Removes the value stored under a key from the AVL tree.
+     *
+     * @param key The key to remove.
+     * @return The removed value, or null if the key was not present.
+     */
+    public synchronized V remove(K key) {
+        checkNotFrozen();
+        TreeInstrumentation probe = instrumentation;
+        long start = probe != null ? System.nanoTime() : 0;
+        AVLNode<K, V> node = root;
+        int depth = 0;
+        while (node != null) {
+            int comparisonResult = key.compareTo(node.key);
+            if (comparisonResult == 0) {
+                break;
+            }
+            path[depth++] = node;
+            node = comparisonResult < 0 ? node.left : node.right;
+        }
+        if (node == null) {
+            Arrays.fill(path, 0, depth, null);
+            if (probe != null) {
+                probe.removed(depth, false, System.nanoTime() - start);
+            }
+            return null; // Key not present
+        }
+        V removed = node.value;
+        int searchDepth = depth + 1;
+
+        // Two children, move the in-order successor's contents up and remove the successor instead
+        int removedDepth = -1;
+        if (node.left != null && node.right != null) {
+            removedDepth = depth;
+            path[depth++] = node;
+            AVLNode<K, V> successor = node.right;
+            while (successor.left != null) {
+                path[depth++] = successor;
+                successor = successor.left;
+            }
+            node = successor;
+        }
+        copyPath(depth);
+        if (removedDepth >= 0) {
+            path[removedDepth].key = node.key;
+            path[removedDepth].value = node.value;
+        }
+
+        // The node now has at most one child, splice it out
+        AVLNode<K, V> child = node.left != null ? node.left : node.right;
+        if (depth == 0) {
+            root = child;
+        } else {
+            replaceChild(path[depth - 1], node, child);
+            root = retrace(depth);
+        }
+        size--;
+        if (probe != null) {
+            probe.removed(searchDepth, true, System.nanoTime() - start);
+        }
+        return removed;
+    }
+
+    /**
+     * In copy-on-write mode, replaces the recorded path with fresh copies of its nodes, each
+     * linked to the copy of the next, so the write can change them without touching the
+     * published tree. Does nothing otherwise.
+     *
+     * @param depth Number of nodes recorded on the path.
+     */
+    private void copyPath(int depth) {
+        if (!copyOnWrite) {
+            return;
+        }
+        for (int i = 0; i < depth; i++) {
+            AVLNode<K, V> copy = new AVLNode<>(path[i]);
+            if (i > 0) {
+                replaceChild(path[i - 1], path[i], copy);
+            }
+            path[i] = copy;
+        }
+    }
+
+    /**
+     * Walks back up the recorded path, updating heights and rotating where needed.
+     * Stops rebalancing as soon as a subtree's height is unchanged, since no node above it can
+     * have become unbalanced, but keeps updating subtree sizes up to the root.
+     * The path is cleared on the way.
+     *
+     * @param depth Number of nodes recorded on the path, with the root first.
+     * @return The root of the whole tree afterwards, for the caller to publish.
+     */
+    private AVLNode<K, V> retrace(int depth) {
+        AVLNode<K, V> top = path[0];
+        boolean heightChanged = true;
+        for (int i = depth - 1; i >= 0; i--) {
+            AVLNode<K, V> node = path[i];
+            path[i] = null;
+            if (!heightChanged) {
+                update(node);
+                continue;
+            }
+            int oldHeight = node.height;
+            AVLNode<K, V> subtree = balance(node);
+            if (subtree != node) {
+                if (i == 0) {
+                    top = subtree;
+                } else {
+                    replaceChild(path[i - 1], node, subtree);
+                }
+            }
+            heightChanged = subtree.height != oldHeight;
+        }
+        for (int i = depth; i < path.length && path[i] != null; i++) {
+            path[i] = null;
+        }
+        return top;
+    }
+
+    private void replaceChild(AVLNode<K, V> parent, AVLNode<K, V> oldChild, AVLNode<K, V> newChild) {
+        if (parent.left == oldChild) {
+            parent.left = newChild;
+        } else {
+            parent.right = newChild;
+        }
+    }
+
+    /**
+     * Calls an action for every key and value in key order. The walk reads the root once,
+     * so on a frozen or copy-on-write tree it sees a single consistent version.
+     *
+     * @param action The action to call with each key and its value.
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Deque<AVLNode<K, V>> stack = new ArrayDeque<>();
+        AVLNode<K, V> node = root;
+        while (node != null || !stack.isEmpty()) {
+            while (node != null) {
+                stack.push(node);
+                node = node.left;
+            }
+            node = stack.pop();
+            action.accept(node.key, node.value);
+            node = node.right;
+        }
+    }
+
+    /**
+     * Iterates lazily over the keys and values in a range, in key order. Finding the start
+     * takes O(log n) and each step after it amortized O(1). The iterator reads the root once,
+     * so on a frozen or copy-on-write tree it sees a single consistent version.
+     *
+     * @param from The lowest key to include, or null to start at the first key.
+     * @param to   The key to stop before, or null to run to the last key.
+     * @return The iterator.
+     */
+    public Iterator<Map.Entry<K, V>> iterator(K from, K to) {
+        Deque<AVLNode<K, V>> stack = new ArrayDeque<>();
+        AVLNode<K, V> node = root;
+        // Leave on the stack every node on the way down that is not below the start of the range
+        while (node != null) {
+            if (from == null || from.compareTo(node.key) <= 0) {
+                stack.push(node);
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty() && (to == null || stack.peek().key.compareTo(to) < 0);
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                AVLNode<K, V> next = stack.pop();
+                for (AVLNode<K, V> node = next.right; node != null; node = node.left) {
+                    stack.push(node);
+                }
+                return new AbstractMap.SimpleImmutableEntry<>(next.key, next.value);
+            }
+        };
+    }
+
+    /**
+     * Streams the keys and values in a range lazily, in key order, in O(log n + k) for k results.
+     *
+     * @param from The lowest key to include, or null to start at the first key.
+     * @param to   The key to stop before, or null to run to the last key.
+     * @return The sequential stream.
+     */
+    public Stream<Map.Entry<K, V>> range(K from, K to) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(from, to),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Streams the keys that start with a prefix, with their values, lazily and in key order.
+     *
+     * @param tree   The tree to search.
+     * @param prefix The prefix, for example "soft" for autocomplete.
+     * @return The sequential stream.
+     */
+    public static <V> Stream<Map.Entry<String, V>> prefix(AVLTree<String, V> tree, String prefix) {
+        return tree.range(prefix, prefixEnd(prefix));
+    }
+
+    /**
+     * Finds the end of the range of strings starting with a prefix: the smallest string that
+     * sorts after all of them. Used as the upper bound of range or topK to search by prefix.
+     *
+     * @param prefix The prefix.
+     * @return The first string after the prefix's range, or null if the range runs to the end.
+     */
+    public static String prefixEnd(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    /**
+     * Counts the keys that sort before a key, whether or not the key itself is present, in O(log n).
+     *
+     * @param key The key.
+     * @return The number of smaller keys, which is the key's index in key order if it is present.
+     */
+    public int rank(K key) {
+        int rank = 0;
+        AVLNode<K, V> node = root;
+        while (node != null) {
+            int comparisonResult = key.compareTo(node.key);
+            if (comparisonResult <= 0) {
+                if (comparisonResult == 0) {
+                    return rank + getSize(node.left);
+                }
+                node = node.left;
+            } else {
+                rank += getSize(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Finds the key and value at an index in key order, in O(log n).
+     *
+     * @param index The index, from 0 to size() - 1.
+     * @return The key and value.
+     * @throws IndexOutOfBoundsException If the index is out of range.
+     */
+    public Map.Entry<K, V> select(int index) {
+        AVLNode<K, V> node = root;
+        if (index < 0 || index >= getSize(node)) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of range for " + getSize(node) + " keys");
+        }
+        while (true) {
+            int leftSize = getSize(node.left);
+            if (index == leftSize) {
+                return new AbstractMap.SimpleImmutableEntry<>(node.key, node.value);
+            }
+            if (index < leftSize) {
+                node = node.left;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Finds the highest-ranked values among the keys in a range, using the best value each node
+     * tracks below it. The range is split into O(log n) nodes and whole subtrees, which are then
+     * opened best first, so the cost depends on k and the height of the tree, not on the number
+     * of keys in the range.
+     *
+     * @param from The lowest key to include, or null to start at the first key.
+     * @param to   The key to stop before, or null to run to the last key.
+     * @param k    The number of values wanted.
+     * @return Up to k values, highest-ranked first.
+     * @throws IllegalStateException If the tree was constructed without a priority.
+     */
+    public List<V> topK(K from, K to, int k) {
+        if (priority == null) {
+            throw new IllegalStateException("The AVL tree was constructed without a priority to rank values by");
+        }
+        PriorityQueue<Candidate<K, V>> candidates =
+                new PriorityQueue<>((a, b) -> priority.compare(b.value(), a.value()));
+
+        // Descend to the first node inside the range, then split each side of the range into
+        // single nodes and whole subtrees
+        AVLNode<K, V> split = root;
+        while (split != null && !(isAtLeast(split.key, from) && isBelow(split.key, to))) {
+            split = isAtLeast(split.key, from) ? split.left : split.right;
+        }
+        if (split != null) {
+            candidates.add(new Candidate<>(split, false));
+            for (AVLNode<K, V> node = split.left; node != null; ) {
+                if (isAtLeast(node.key, from)) {
+                    candidates.add(new Candidate<>(node, false));
+                    addSubtree(candidates, node.right);
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+            for (AVLNode<K, V> node = split.right; node != null; ) {
+                if (isBelow(node.key, to)) {
+                    candidates.add(new Candidate<>(node, false));
+                    addSubtree(candidates, node.left);
+                    node = node.right;
+                } else {
+                    node = node.left;
+                }
+            }
+        }
+
+        List<V> top = new ArrayList<>(Math.min(k, 64));
+        while (top.size() < k && !candidates.isEmpty()) {
+            Candidate<K, V> candidate = candidates.poll();
+            AVLNode<K, V> node = candidate.node;
+            if (candidate.whole && node.best != node) {
+                // The best value is further down, so open the subtree one level
+                candidates.add(new Candidate<>(node, false));
+            } else {
+                top.add(node.value);
+            }
+            if (candidate.whole) {
+                addSubtree(candidates, node.left);
+                addSubtree(candidates, node.right);
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Class for a topK candidate: a single node, or a whole subtree standing for its best node.
+     */
+    private static class Candidate<K, V> {
+        final AVLNode<K, V> node;
+        final boolean whole; // Whether the candidate stands for the node's whole subtree
+
+        Candidate(AVLNode<K, V> node, boolean whole) {
+            this.node = node;
+            this.whole = whole;
+        }
+
+        V value() {
+            return whole ? node.best.value : node.value;
+        }
+    }
+
+    private static <K, V> void addSubtree(PriorityQueue<Candidate<K, V>> candidates, AVLNode<K, V> subtree) {
+        if (subtree != null) {
+            candidates.add(new Candidate<>(subtree, true));
+        }
+    }
+
+    private boolean isAtLeast(K key, K from) {
+        return from == null || key.compareTo(from) >= 0;
+    }
+
+    private boolean isBelow(K key, K to) {
+        return to == null || key.compareTo(to) < 0;
+    }
+
+    /**
+     * Looks up the value stored under a key.
+     *
+     * @param key The key to search for.
+     * @return The value for the key, or null if the key is not present.
+     */
+    public V get(K key) {
+        TreeInstrumentation probe = instrumentation;
+        long start = probe != null ? System.nanoTime() : 0;
+        AVLNode<K, V> node = root;
+        int steps = 0;
+        while (node != null) {
+            steps++;
+            int comparisonResult = key.compareTo(node.key);
+            if (comparisonResult == 0) {
+                break; // Key found
+            }
+            node = comparisonResult < 0 ? node.left : node.right;
+        }
+        searchOpCount.add(steps);
+        if (probe != null) {
+            probe.searched(steps, node != null, System.nanoTime() - start);
+        }
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * Looks up a whole batch of keys at once. The keys are sorted and deduplicated, then
+     * resolved in a single walk of the tree that carries each sorted run of keys down to the
+     * subtree that can contain it, so every node is visited at most once per batch.
+     *
+     * @param keys The keys to search for.
+     * @return The value for each key in the same order as the keys, with null for keys not present.
+     */
+    public List<V> getAll(List<? extends K> keys) {
+        TreeInstrumentation probe = instrumentation;
+        long start = probe != null ? System.nanoTime() : 0;
+        Object[] unique = keys.toArray();
+        int count = sortUnique(unique);
+
+        Object[] uniqueResults = new Object[count];
+        int steps = resolveSorted(root, unique, 0, count, uniqueResults);
+
+        // Hand the results back in the original query order
+        Object[] results = new Object[keys.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = uniqueResults[Arrays.binarySearch(unique, 0, count, keys.get(i))];
+        }
+        if (probe != null) {
+            probe.batchSearched(results.length, steps, System.nanoTime() - start);
+        }
+        return asList(results);
+    }
+
+    /**
+     * Looks up a whole batch of keys on several threads. The sorted, deduplicated keys are
+     * split into chunks that are resolved against the tree independently, so the tree must be
+     * frozen or in copy-on-write mode, in which case every chunk searches the version of the
+     * tree current when the call started. Each task counts its search operations locally and
+     * adds them once at the end.
+     *
+     * @param keys The keys to search for.
+     * @param pool The pool to run the lookups on.
+     * @return The value for each key in the same order as the keys, with null for keys not present.
+     * @throws IllegalStateException If the tree is neither frozen nor in copy-on-write mode.
+     */
+    public List<V> getAllParallel(List<? extends K> keys, ForkJoinPool pool) {
+        if (!frozen && !copyOnWrite) {
+            throw new IllegalStateException("The AVL tree must be frozen or copy-on-write to be searched in parallel");
+        }
+        TreeInstrumentation probe = instrumentation;
+        long start = probe != null ? System.nanoTime() : 0;
+        AVLNode<K, V> snapshotRoot = root; // Every task searches the same version of the tree
+        Object[] unique = keys.toArray();
+        int count = sortUnique(unique);
+
+        Object[] uniqueResults = new Object[count];
+        Object[] results = new Object[unique.length];
+        int chunks = (count + PARALLEL_LOOKUP_CHUNK - 1) / PARALLEL_LOOKUP_CHUNK;
+        // Tasks write disjoint slots of the result arrays, and join() makes their writes visible here
+        int steps = pool.submit(() -> IntStream.range(0, chunks).parallel().map(chunk -> resolveSorted(snapshotRoot,
+                unique, chunk * PARALLEL_LOOKUP_CHUNK, Math.min(count, (chunk + 1) * PARALLEL_LOOKUP_CHUNK),
+                uniqueResults)).sum())
+                .join();
+        pool.submit(() -> IntStream.range(0, results.length).parallel().forEach(i -> results[i] =
+                uniqueResults[Arrays.binarySearch(unique, 0, count, keys.get(i))]))
+                .join();
+        if (probe != null) {
+            probe.batchSearched(results.length, steps, System.nanoTime() - start);
+        }
+        return asList(results);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<V> asList(Object[] values) {
+        return (List<V>) Arrays.asList(values);
+    }
+
+    /**
+     * Sorts an array of keys and moves the distinct keys to its front.
+     *
+     * @param keys The keys, sorted and compacted in place.
+     * @return The number of distinct keys.
+     */
+    private static int sortUnique(Object[] keys) {
+        if (keys.length >= PARALLEL_SORT_THRESHOLD) {
+            Arrays.parallelSort(keys, null);
+        } else {
+            Arrays.sort(keys);
+        }
+        int count = 0;
+        for (Object key : keys) {
+            if (count == 0 || compare(keys[count - 1], key) != 0) {
+                keys[count++] = key;
+            }
+        }
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>> int compare(Object a, Object b) {
+        return ((K) a).compareTo((K) b);
+    }
+
+    /**
+     * Resolves a range of sorted, distinct keys against a subtree. Each node splits the range
+     * at its key with a binary search, and the two halves continue into the two children.
+     *
+     * @param subtree The subtree the keys are resolved against.
+     * @param keys    Sorted, distinct keys.
+     * @param from    Index of the first key in the range.
+     * @param to      Index one past the last key in the range.
+     * @param results Array receiving the value for each key index.
+     * @return The number of nodes visited.
+     */
+    private int resolveSorted(AVLNode<K, V> subtree, Object[] keys, int from, int to, Object[] results) {
+        // Pending subtrees with their key ranges; each level leaves at most one sibling pending
+        AVLNode<K, V>[] nodes = newNodeArray(path.length + 1);
+        int[] froms = new int[nodes.length];
+        int[] tos = new int[nodes.length];
+        int pending = 0;
+        int steps = 0;
+        if (subtree != null && from < to) {
+            nodes[0] = subtree;
+            froms[0] = from;
+            tos[0] = to;
+            pending = 1;
+        }
+
+        while (pending > 0) {
+            pending--;
+            AVLNode<K, V> node = nodes[pending];
+            from = froms[pending];
+            to = tos[pending];
+            steps++;
+
+            int split = Arrays.binarySearch(keys, from, to, node.key);
+            int rightFrom;
+            if (split >= 0) {
+                results[split] = node.value; // Key found
+                rightFrom = split + 1;
+            } else {
+                split = -split - 1;
+                rightFrom = split;
+            }
+
+            if (node.right != null && rightFrom < to) {
+                nodes[pending] = node.right;
+                froms[pending] = rightFrom;
+                tos[pending] = to;
+                pending++;
+            }
+            if (node.left != null && from < split) {
+                nodes[pending] = node.left;
+                froms[pending] = from;
+                tos[pending] = split;
+                pending++;
+            }
+        }
+        searchOpCount.add(steps);
+        return steps;
+    }
+
+    /**
+     * Calculates the height of a node.
+     *
+     * @param node The node to calculate the height for.
+     * @return The height of the node.
+     */
+    private int getHeight(AVLNode<K, V> node) {
+        if (node == null) {
+            return 0;
+        }
+        return node.height;
+    }
+
+    private static int getSize(AVLNode<?, ?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * Walks the whole tree checking that the keys are in order, that each node's height and
+     * subtree size match its children's, and that the heights of its children differ by at
+     * most one. Takes O(n), so it is only for checking the engine.
+     *
+     * @throws IllegalStateException If any of these does not hold, naming the first node that fails.
+     */
+    void checkInvariants() {
+        checkInvariants(root, null, null);
+    }
+
+    private void checkInvariants(AVLNode<K, V> node, K low, K high) {
+        if (node == null) {
+            return;
+        }
+        if (low != null && node.key.compareTo(low) <= 0 || high != null && node.key.compareTo(high) >= 0) {
+            throw new IllegalStateException("key " + node.key + " is out of order");
+        }
+        checkInvariants(node.left, low, node.key);
+        checkInvariants(node.right, node.key, high);
+        int left = getHeight(node.left);
+        int right = getHeight(node.right);
+        if (Math.abs(left - right) > 1) {
+            throw new IllegalStateException("node " + node.key + " has children of heights " + left + " and " + right);
+        }
+        if (node.height != 1 + Math.max(left, right)) {
+            throw new IllegalStateException("node " + node.key + " has the wrong height");
+        }
+        if (node.size != 1 + getSize(node.left) + getSize(node.right)) {
+            throw new IllegalStateException("node " + node.key + " has the wrong subtree size");
+        }
+    }
+
+    /**
+     * Recalculates a node's height, subtree size and best value from its children.
+     *
+     * @param node The node to update.
+     */
+    private void update(AVLNode<K, V> node) {
+        node.height = 1 + Math.max(getHeight(node.left), getHeight(node.right));
+        node.size = 1 + getSize(node.left) + getSize(node.right);
+        if (priority != null) {
+            AVLNode<K, V> best = node;
+            if (node.left != null && priority.compare(node.left.best.value, best.value) > 0) {
+                best = node.left.best;
+            }
+            if (node.right != null && priority.compare(node.right.best.value, best.value) > 0) {
+                best = node.right.best;
+            }
+            node.best = best;
+        }
+    }
+
+    /**
+     * Calculates the balance factor of a node.
+     *
+     * @param node The node to calculate the balance factor for.
+     * @return The balance factor of the node.
+     */
+    private int getBalanceFactor(AVLNode<K, V> node) {
+        if (node == null) {
+            return 0;
+        }
+        return getHeight(node.left) - getHeight(node.right);
+    }
+
+    /**
+     *  Right rotates a node on the AVL tree.
+     *
+     * @param y The node to perform the rotation on.
+     * @return The new root node after rotation.
+     */
+    private AVLNode<K, V> rightRotate(AVLNode<K, V> y) {
+        AVLNode<K, V> x = y.left;
+        AVLNode<K, V> swapVariable = x.right;
+
+        // Perform rotation
+        x.right = y;
+        y.left = swapVariable;
+
+        // Update heights and sizes
+        update(y);
+        update(x);
+
+        // Return new root
+        return x;
+    }
+
+    /**
+     *  Left-rotates a node on the AVL tree.
+     *
+     * @param x The node to perform the rotation on.
+     * @return The new root node after rotation.
+     */
+    private AVLNode<K, V> leftRotate(AVLNode<K, V> x) {
+        AVLNode<K, V> y = x.right;
+        AVLNode<K, V> swapVariable = y.left;
+
+        // Perform rotation
+        y.left = x;
+        x.right = swapVariable;
+
+        // Update heights and sizes
+        update(x);
+        update(y);
+
+        // Return new root
+        return y;
+    }
+
+    /**
+     * Returns a node a rotation may change: a copy in copy-on-write mode, the node itself otherwise.
+     * Nodes on the write path are already copies, but rotations after a remove also reach into
+     * the sibling subtree, which is still shared with the published tree.
+     *
+     * @param node The node about to be changed.
+     * @return The node to change.
+     */
+    private AVLNode<K, V> writable(AVLNode<K, V> node) {
+        return copyOnWrite ? new AVLNode<>(node) : node;
+    }
+
+    /**
+     * Updates a node's height and rotates it if it has become unbalanced. The rotation case
+     * is picked from the children's balance factors, so no key comparisons are needed.
+     *
+     * @param node The node to balance.
+     * @return The root of the balanced subtree.
+     */
+    private AVLNode<K, V> balance(AVLNode<K, V> node) {
+        update(node);
+
+        int balanceFactor = getBalanceFactor(node);
+
+        // Left subtree is heavier
+        if (balanceFactor > 1) {
+            node.left = writable(node.left);
+            // Left-Left case
+            if (getBalanceFactor(node.left) >= 0) {
+                rotated(TreeInstrumentation.Rotation.LEFT_LEFT);
+                return rightRotate(node);
+            }
+            // Left-Right case
+            else {
+                rotated(TreeInstrumentation.Rotation.LEFT_RIGHT);
+                node.left.right = writable(node.left.right);
+                node.left = leftRotate(node.left);
+                return rightRotate(node);
+            }
+        }
+        // Right subtree is heavier
+        else if (balanceFactor < -1) {
+            node.right = writable(node.right);
+            // Right-Right case
+            if (getBalanceFactor(node.right) <= 0) {
+                rotated(TreeInstrumentation.Rotation.RIGHT_RIGHT);
+                return leftRotate(node);
+            }
+            // Right-Left case
+            else {
+                rotated(TreeInstrumentation.Rotation.RIGHT_LEFT);
+                node.right.left = writable(node.right.left);
+                node.right = rightRotate(node.right);
+                return leftRotate(node);
+            }
+        }
+        return node;
+    }
+
+    private void rotated(TreeInstrumentation.Rotation rotation) {
+        if (instrumentation != null) {
+            instrumentation.rotated(rotation);
+        }
+    }
+}
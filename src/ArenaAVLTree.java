@@ -0,0 +1,449 @@
+//HLDZUH001
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BinaryOperator;
+
+/**
+ * Class representing an AVL tree of knowledge base entries without a heap object per entry.
+ * Nodes live in parallel primitive arrays indexed by node number, and each entry's term and
+ * statement are stored as UTF-8 bytes in a shared arena, either on the heap or off it in direct
+ * buffers. A node costs 33 bytes plus its text, against well over 100 bytes of headers and
+ * references for an AVLNode with its KBEntry and two Strings, and the garbage collector only
+ * ever sees a handful of large arrays. Entries are decoded back into a KBEntry when looked up.
+ * Terms are ordered by Unicode code point, which is the order of their UTF-8 bytes. Writers are
+ * serialized, and the tree must be frozen before it is searched from several threads.
+ */
+class ArenaAVLTree {
+    private static final int NIL = -1; // Child index meaning there is no child
+    private static final int NODE_BYTES = 4 + 4 + 1 + 8 + 4 + 4 + 8; // Bytes of node arrays per node
+    private static final int FIRST_SEGMENT_SIZE = 1 << 16; // Bytes in the first arena segment
+    private static final int MAX_SEGMENT_SIZE = 1 << 30; // Arena segments double in size up to this
+
+    private final BinaryOperator<KBEntry> mergePolicy; // Decides which entry a term keeps when it is put again
+    private final boolean offHeap; // Whether the arena is allocated outside the Java heap
+    private int root = NIL; // Node number of the root
+    private int size = 0; // Number of nodes, which are numbered from 0
+    private volatile boolean frozen = false; // Whether the tree has been made read-only
+    private final LongAdder searchOpCount = new LongAdder(); // Counter for search operations, safe across threads
+    private int insertOpCount = 0; // Counter for insert operations
+    private final int[] path = new int[64]; // Nodes visited on the way down during an insert
+
+    // Node fields, indexed by node number
+    private int[] left = new int[16]; // Left child
+    private int[] right = new int[16]; // Right child
+    private byte[] height = new byte[16]; // Height of the node, at most 64
+    private long[] address = new long[16]; // Arena address of the term bytes, followed by the statement bytes
+    private int[] termLength = new int[16]; // Length of the term in bytes
+    private int[] statementLength = new int[16]; // Length of the statement in bytes
+    private double[] confidence = new double[16]; // Confidence score of the statement
+
+    // Arena of UTF-8 text. An address holds the segment number in its high 32 bits and the position in its low 32.
+    private ByteBuffer[] segments = new ByteBuffer[0];
+    private int segmentUsed = 0; // Bytes used in the last segment
+
+    /**
+     * Constructs an empty tree that keeps the highest-confidence entry for each term, with its arena on the heap.
+     */
+    public ArenaAVLTree() {
+        this(KBEntry.KEEP_HIGHEST_CONFIDENCE, false);
+    }
+
+    /**
+     * Constructs an empty tree.
+     *
+     * @param mergePolicy Function given the existing and the incoming entry for a term, returning the one to keep.
+     * @param offHeap     Whether to store the text in direct buffers outside the Java heap. Their total
+     *                    size is limited by -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+     */
+    public ArenaAVLTree(BinaryOperator<KBEntry> mergePolicy, boolean offHeap) {
+        this.mergePolicy = mergePolicy;
+        this.offHeap = offHeap;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getSearchOpCount() {
+        return searchOpCount.intValue();
+    }
+
+    public int getInsertOpCount() {
+        return insertOpCount;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Calculates the memory reserved by the tree: its node arrays and its arena segments.
+     *
+     * @return The number of bytes.
+     */
+    public long getMemoryUsage() {
+        long bytes = (long) left.length * NODE_BYTES;
+        for (ByteBuffer segment : segments) {
+            bytes += segment.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Makes the tree read-only, so it can be searched from several threads.
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    /**
+     * Puts an entry into the tree under its term. If the term is already present, the merge
+     * policy decides which entry is kept; replacing an entry leaves its old text unused in the arena.
+     *
+     * @param entry Entry to be inserted.
+     */
+    public synchronized void put(KBEntry entry) {
+        if (frozen) {
+            throw new IllegalStateException("The AVL tree is frozen and cannot be modified");
+        }
+        byte[] term = entry.term.getBytes(StandardCharsets.UTF_8);
+        int node = root;
+        int depth = 0;
+        int comparisonResult = 0;
+
+        // Descend to the insertion point, one comparison per level
+        while (node != NIL) {
+            comparisonResult = compare(term, node);
+            if (comparisonResult == 0) {
+                // Term already present, keep one entry
+                KBEntry existing = entryAt(node);
+                KBEntry kept = mergePolicy.apply(existing, entry);
+                if (kept != existing) {
+                    store(node, kept);
+                }
+                return;
+            }
+            insertOpCount++;
+            path[depth++] = node;
+            node = comparisonResult < 0 ? left[node] : right[node];
+        }
+
+        insertOpCount++;
+        int newNode = newNode(entry);
+        if (depth == 0) {
+            root = newNode;
+        } else {
+            if (comparisonResult < 0) {
+                left[path[depth - 1]] = newNode;
+            } else {
+                right[path[depth - 1]] = newNode;
+            }
+            root = retrace(depth);
+        }
+    }
+
+    /**
+     * Bulk loads entries into an empty tree: they are sorted by term, repeated terms are merged
+     * with the merge policy, and the nodes are laid out in term order and linked perfectly
+     * balanced, so a range of terms is also a range of node numbers. A tree that already holds
+     * entries puts them one at a time instead. Counts one insert operation per node placed.
+     *
+     * @param entries Entries to be loaded, in any order.
+     */
+    public synchronized void putAll(List<KBEntry> entries) {
+        if (root != NIL) {
+            for (KBEntry entry : entries) {
+                put(entry);
+            }
+            return;
+        }
+        if (frozen) {
+            throw new IllegalStateException("The AVL tree is frozen and cannot be modified");
+        }
+        KBEntry[] sorted = entries.toArray(new KBEntry[0]);
+        Arrays.parallelSort(sorted, (a, b) -> compareCodePoints(a.term, b.term));
+        int count = 0;
+        for (KBEntry entry : sorted) {
+            if (count > 0 && sorted[count - 1].term.equals(entry.term)) {
+                sorted[count - 1] = mergePolicy.apply(sorted[count - 1], entry);
+            } else {
+                sorted[count++] = entry;
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            newNode(sorted[i]);
+        }
+        root = build(0, count);
+        insertOpCount += count;
+    }
+
+    /**
+     * Links a range of node numbers, already in term order, into a perfectly balanced subtree.
+     *
+     * @param from The first node in the range.
+     * @param to   One past the last node in the range.
+     * @return The root of the subtree, or NIL if the range is empty.
+     */
+    private int build(int from, int to) {
+        if (from >= to) {
+            return NIL;
+        }
+        int mid = (from + to) >>> 1;
+        left[mid] = build(from, mid);
+        right[mid] = build(mid + 1, to);
+        height[mid] = (byte) (1 + Math.max(getHeight(left[mid]), getHeight(right[mid])));
+        return mid;
+    }
+
+    /**
+     * Looks up the entry stored under a term.
+     *
+     * @param term The term to search for.
+     * @return The entry for the term, or null if the term is not present.
+     */
+    public KBEntry get(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int node = root;
+        int steps = 0;
+        while (node != NIL) {
+            steps++;
+            int comparisonResult = compare(key, node);
+            if (comparisonResult == 0) {
+                break; // Term found
+            }
+            node = comparisonResult < 0 ? left[node] : right[node];
+        }
+        searchOpCount.add(steps);
+        return node != NIL ? entryAt(node) : null;
+    }
+
+    /**
+     * Looks up a batch of terms.
+     *
+     * @param terms The terms to search for.
+     * @return The entry for each term in the same order as the terms, with null for terms not present.
+     */
+    public List<KBEntry> getAll(List<String> terms) {
+        List<KBEntry> results = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            results.add(get(term));
+        }
+        return results;
+    }
+
+    /**
+     * Compares two strings by Unicode code point, the order of their UTF-8 encodings. This differs
+     * from String.compareTo only where a supplementary character meets one from U+E000 to U+FFFF.
+     *
+     * @return A negative number, zero or a positive number as the first string sorts before, equal to or after the second.
+     */
+    static int compareCodePoints(String a, String b) {
+        int common = Math.min(a.length(), b.length());
+        for (int i = 0; i < common; i++) {
+            int x = a.charAt(i);
+            int y = b.charAt(i);
+            if (x != y) {
+                if (x >= 0xD800 && y >= 0xD800) {
+                    // Move surrogates above U+E000 to U+FFFF, where the code points they encode belong
+                    x += x >= 0xE000 ? -0x800 : 0x2000;
+                    y += y >= 0xE000 ? -0x800 : 0x2000;
+                }
+                return x - y;
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    /**
+     * Compares an encoded term with a node's term, byte by unsigned byte.
+     *
+     * @param key  The term as UTF-8 bytes.
+     * @param node The node to compare with.
+     * @return A negative number, zero or a positive number as the term sorts before, equal to or after the node's.
+     */
+    private int compare(byte[] key, int node) {
+        ByteBuffer segment = segments[(int) (address[node] >>> 32)];
+        int position = (int) address[node];
+        int length = termLength[node];
+        int common = Math.min(key.length, length);
+        for (int i = 0; i < common; i++) {
+            int difference = (key[i] & 0xff) - (segment.get(position + i) & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return key.length - length;
+    }
+
+    /**
+     * Decodes a node back into an entry.
+     *
+     * @param node The node to decode.
+     * @return A new entry holding the node's term, statement and confidence.
+     */
+    private KBEntry entryAt(int node) {
+        ByteBuffer segment = segments[(int) (address[node] >>> 32)];
+        byte[] bytes = new byte[termLength[node] + statementLength[node]];
+        segment.get((int) address[node], bytes); // Absolute, so concurrent readers do not interfere
+        return new KBEntry(new String(bytes, 0, termLength[node], StandardCharsets.UTF_8),
+                new String(bytes, termLength[node], statementLength[node], StandardCharsets.UTF_8), confidence[node]);
+    }
+
+    /**
+     * Adds an unlinked leaf node holding an entry, growing the node arrays when they are full.
+     *
+     * @param entry The entry to store.
+     * @return The new node's number.
+     */
+    private int newNode(KBEntry entry) {
+        if (size == left.length) {
+            int capacity = size + (size >> 1);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            height = Arrays.copyOf(height, capacity);
+            address = Arrays.copyOf(address, capacity);
+            termLength = Arrays.copyOf(termLength, capacity);
+            statementLength = Arrays.copyOf(statementLength, capacity);
+            confidence = Arrays.copyOf(confidence, capacity);
+        }
+        int node = size++;
+        left[node] = NIL;
+        right[node] = NIL;
+        height[node] = 1;
+        store(node, entry);
+        return node;
+    }
+
+    /**
+     * Writes an entry's text into the arena and points a node at it.
+     *
+     * @param node  The node to update.
+     * @param entry The entry to store.
+     */
+    private void store(int node, KBEntry entry) {
+        byte[] term = entry.term.getBytes(StandardCharsets.UTF_8);
+        byte[] statement = entry.statement.getBytes(StandardCharsets.UTF_8);
+        long recordAddress = allocate(term.length + statement.length);
+        ByteBuffer segment = segments[(int) (recordAddress >>> 32)];
+        segment.put((int) recordAddress, term);
+        segment.put((int) recordAddress + term.length, statement);
+        address[node] = recordAddress;
+        termLength[node] = term.length;
+        statementLength[node] = statement.length;
+        confidence[node] = entry.confidence;
+    }
+
+    /**
+     * Reserves space in the arena, starting a new segment when the last one is full.
+     * A record never spans two segments.
+     *
+     * @param length The number of bytes to reserve.
+     * @return The arena address of the space.
+     */
+    private long allocate(int length) {
+        int last = segments.length - 1;
+        if (last < 0 || segments[last].capacity() - segmentUsed < length) {
+            int capacity = last < 0 ? FIRST_SEGMENT_SIZE
+                    : (int) Math.min(MAX_SEGMENT_SIZE, 2L * segments[last].capacity());
+            capacity = Math.max(capacity, length);
+            segments = Arrays.copyOf(segments, ++last + 1);
+            segments[last] = offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            segmentUsed = 0;
+        }
+        long recordAddress = ((long) last << 32) | segmentUsed;
+        segmentUsed += length;
+        return recordAddress;
+    }
+
+    /**
+     * Walks back up the recorded path, updating heights and rotating where needed, and stops
+     * as soon as a subtree's height is unchanged.
+     *
+     * @param depth Number of nodes recorded on the path, with the root first.
+     * @return The root of the whole tree afterwards.
+     */
+    private int retrace(int depth) {
+        int top = path[0];
+        for (int i = depth - 1; i >= 0; i--) {
+            int node = path[i];
+            int oldHeight = height[node];
+            int subtree = balance(node);
+            if (subtree != node) {
+                if (i == 0) {
+                    top = subtree;
+                } else if (left[path[i - 1]] == node) {
+                    left[path[i - 1]] = subtree;
+                } else {
+                    right[path[i - 1]] = subtree;
+                }
+            }
+            if (height[subtree] == oldHeight) {
+                break;
+            }
+        }
+        return top;
+    }
+
+    private int getHeight(int node) {
+        return node == NIL ? 0 : height[node];
+    }
+
+    private int getBalanceFactor(int node) {
+        return node == NIL ? 0 : getHeight(left[node]) - getHeight(right[node]);
+    }
+
+    private void updateHeight(int node) {
+        height[node] = (byte) (1 + Math.max(getHeight(left[node]), getHeight(right[node])));
+    }
+
+    private int rightRotate(int y) {
+        int x = left[y];
+        left[y] = right[x];
+        right[x] = y;
+        updateHeight(y);
+        updateHeight(x);
+        return x;
+    }
+
+    private int leftRotate(int x) {
+        int y = right[x];
+        right[x] = left[y];
+        left[y] = x;
+        updateHeight(x);
+        updateHeight(y);
+        return y;
+    }
+
+    /**
+     * Updates a node's height and rotates it if it has become unbalanced.
+     *
+     * @param node The node to balance.
+     * @return The root of the balanced subtree.
+     */
+    private int balance(int node) {
+        updateHeight(node);
+        int balanceFactor = getBalanceFactor(node);
+
+        // Left subtree is heavier
+        if (balanceFactor > 1) {
+            if (getBalanceFactor(left[node]) < 0) {
+                left[node] = leftRotate(left[node]); // Left-Right case
+            }
+            return rightRotate(node);
+        }
+        // Right subtree is heavier
+        else if (balanceFactor < -1) {
+            if (getBalanceFactor(right[node]) > 0) {
+                right[node] = rightRotate(right[node]); // Right-Left case
+            }
+            return leftRotate(node);
+        }
+        return node;
+    }
+}
@@ -0,0 +1,29 @@
+//HLDZUH001
+
+/**
+ * Class representing a node in a balanced tree that links each node to its parent.
+ *
+ * @param <K> The type of the key the node is ordered by.
+ * @param <V> The type of the value stored in the node.
+ */
+class BalancedNode<K, V> {
+    K key; // Key the node is ordered by
+    V value; // Value stored in the node
+    BalancedNode<K, V> left; // Reference to the left child node
+    BalancedNode<K, V> right; // Reference to the right child node
+    BalancedNode<K, V> parent; // Reference to the parent node, or null at the root
+    int balance; // The engine's balancing data: 1 for red in a red-black tree, the priority in a treap, the rank in a WAVL tree
+
+    /**
+     * Constructs a BalancedNode with the given key and value.
+     *
+     * @param key    Key the node is ordered by.
+     * @param value  Value that will be stored in the node.
+     * @param parent The node's parent, or null for the root.
+     */
+    public BalancedNode(K key, V value, BalancedNode<K, V> parent) {
+        this.key = key;
+        this.value = value;
+        this.parent = parent;
+    }
+}
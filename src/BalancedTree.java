@@ -0,0 +1,305 @@
+//HLDZUH001
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+
+/**
+ * Class for the parts every parent-linked balanced tree engine shares: searching, inserting
+ * at a leaf, splicing out a node, rotations, and the operation counts and instrumentation
+ * AVLTree keeps. Each engine supplies its own rebalancing after an insert and its own remove.
+ * Searches may run on several threads at once, but writes must not overlap each other or
+ * any search.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+abstract class BalancedTree<K extends Comparable<K>, V> implements OrderedIndex<K, V> {
+    BalancedNode<K, V> root; // Root node of the tree
+    private final BinaryOperator<V> mergePolicy; // Decides which value a key keeps when it is put again
+    private int size = 0; // Number of keys stored in the tree
+    private final LongAdder searchOpCount = new LongAdder(); // Counter for search operations, safe across threads
+    private int insertOpCount = 0; // Counter for insert operations
+    private TreeInstrumentation instrumentation = null; // Optional hook told about every operation
+
+    /**
+     * Constructs an empty tree with the given merge policy.
+     *
+     * @param mergePolicy Function given the existing and the incoming value for a key, returning the one to keep.
+     */
+    BalancedTree(BinaryOperator<V> mergePolicy) {
+        this.mergePolicy = mergePolicy;
+    }
+
+    /**
+     * Sets up the balancing data of a node just added as a leaf, before the tree is rebalanced.
+     *
+     * @param node The new node.
+     */
+    abstract void initialize(BalancedNode<K, V> node);
+
+    /**
+     * Restores the engine's balance after a leaf has been added.
+     *
+     * @param node The new leaf.
+     */
+    abstract void rebalanceInsert(BalancedNode<K, V> node);
+
+    /**
+     * Unlinks a node from the tree and restores the engine's balance.
+     *
+     * @param node The node holding the key to remove.
+     */
+    abstract void delete(BalancedNode<K, V> node);
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the height of the tree by walking every node, so it takes O(n).
+     *
+     * @return The height, 0 for an empty tree.
+     */
+    @Override
+    public int getHeight() {
+        return getHeight(root);
+    }
+
+    private int getHeight(BalancedNode<K, V> node) {
+        return node == null ? 0 : 1 + Math.max(getHeight(node.left), getHeight(node.right));
+    }
+
+    @Override
+    public int getSearchOpCount() {
+        return searchOpCount.intValue();
+    }
+
+    @Override
+    public int getInsertOpCount() {
+        return insertOpCount;
+    }
+
+    @Override
+    public void resetSearchOpCount() {
+        searchOpCount.reset();
+    }
+
+    @Override
+    public void resetInsertOpCount() {
+        insertOpCount = 0;
+    }
+
+    @Override
+    public void setInstrumentation(TreeInstrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
+    @Override
+    public V get(K key) {
+        TreeInstrumentation probe = instrumentation;
+        long start = probe != null ? System.nanoTime() : 0;
+        BalancedNode<K, V> node = root;
+        int steps = 0;
+        while (node != null) {
+            steps++;
+            int comparisonResult = key.compareTo(node.key);
+            if (comparisonResult == 0) {
+                break; // Key found
+            }
+            node = comparisonResult < 0 ? node.left : node.right;
+        }
+        searchOpCount.add(steps);
+        if (probe != null) {
+            probe.searched(steps, node != null, System.nanoTime() - start);
+        }
+        return node != null ? node.value : null;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        TreeInstrumentation probe = instrumentation;
+        long start = probe != null ? System.nanoTime() : 0;
+        BalancedNode<K, V> parent = null;
+        BalancedNode<K, V> node = root;
+        int depth = 0;
+        int comparisonResult = 0;
+
+        // Descend to the insertion point, one comparison per level
+        while (node != null) {
+            comparisonResult = key.compareTo(node.key);
+            depth++;
+            if (comparisonResult == 0) {
+                // Key already present, keep one value
+                node.value = mergePolicy.apply(node.value, value);
+                if (probe != null) {
+                    probe.inserted(depth, false, System.nanoTime() - start);
+                }
+                return;
+            }
+            insertOpCount++;
+            parent = node;
+            node = comparisonResult < 0 ? node.left : node.right;
+        }
+
+        insertOpCount++;
+        BalancedNode<K, V> newNode = new BalancedNode<>(key, value, parent);
+        initialize(newNode);
+        if (parent == null) {
+            root = newNode;
+        } else if (comparisonResult < 0) {
+            parent.left = newNode;
+        } else {
+            parent.right = newNode;
+        }
+        rebalanceInsert(newNode);
+        size++;
+        if (probe != null) {
+            probe.inserted(depth + 1, true, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public V remove(K key) {
+        TreeInstrumentation probe = instrumentation;
+        long start = probe != null ? System.nanoTime() : 0;
+        BalancedNode<K, V> node = root;
+        int depth = 0;
+        while (node != null) {
+            depth++;
+            int comparisonResult = key.compareTo(node.key);
+            if (comparisonResult == 0) {
+                break;
+            }
+            node = comparisonResult < 0 ? node.left : node.right;
+        }
+        if (node == null) {
+            if (probe != null) {
+                probe.removed(depth, false, System.nanoTime() - start);
+            }
+            return null; // Key not present
+        }
+        V removed = node.value;
+        delete(node);
+        size--;
+        if (probe != null) {
+            probe.removed(depth, true, System.nanoTime() - start);
+        }
+        return removed;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Deque<BalancedNode<K, V>> stack = new ArrayDeque<>();
+        BalancedNode<K, V> node = root;
+        while (node != null || !stack.isEmpty()) {
+            while (node != null) {
+                stack.push(node);
+                node = node.left;
+            }
+            node = stack.pop();
+            action.accept(node.key, node.value);
+            node = node.right;
+        }
+    }
+
+    /**
+     * Finds the node to unlink when removing a node's key. A node with two children takes the
+     * key and value of its in-order successor, which has no left child, and the successor is
+     * unlinked instead, as AVLTree does.
+     *
+     * @param node The node holding the key to remove.
+     * @return The node to unlink, with at most one child.
+     */
+    BalancedNode<K, V> unlinkTarget(BalancedNode<K, V> node) {
+        if (node.left == null || node.right == null) {
+            return node;
+        }
+        BalancedNode<K, V> successor = node.right;
+        while (successor.left != null) {
+            successor = successor.left;
+        }
+        node.key = successor.key;
+        node.value = successor.value;
+        return successor;
+    }
+
+    /**
+     * Replaces a node that has at most one child with that child.
+     *
+     * @param node The node to unlink.
+     * @return The child that took its place, or null if it was a leaf.
+     */
+    BalancedNode<K, V> splice(BalancedNode<K, V> node) {
+        BalancedNode<K, V> child = node.left != null ? node.left : node.right;
+        if (child != null) {
+            child.parent = node.parent;
+        }
+        replaceChild(node.parent, node, child);
+        node.left = node.right = node.parent = null;
+        return child;
+    }
+
+    private void replaceChild(BalancedNode<K, V> parent, BalancedNode<K, V> oldChild, BalancedNode<K, V> newChild) {
+        if (parent == null) {
+            root = newChild;
+        } else if (parent.left == oldChild) {
+            parent.left = newChild;
+        } else {
+            parent.right = newChild;
+        }
+    }
+
+    /**
+     * Performs a left rotation, moving a node's right child up into its place.
+     *
+     * @param x The node to perform the rotation on.
+     * @return The node now in x's place.
+     */
+    BalancedNode<K, V> rotateLeft(BalancedNode<K, V> x) {
+        BalancedNode<K, V> y = x.right;
+        x.right = y.left;
+        if (y.left != null) {
+            y.left.parent = x;
+        }
+        y.parent = x.parent;
+        replaceChild(x.parent, x, y);
+        y.left = x;
+        x.parent = y;
+        return y;
+    }
+
+    /**
+     * Performs a right rotation, moving a node's left child up into its place.
+     *
+     * @param y The node to perform the rotation on.
+     * @return The node now in y's place.
+     */
+    BalancedNode<K, V> rotateRight(BalancedNode<K, V> y) {
+        BalancedNode<K, V> x = y.left;
+        y.left = x.right;
+        if (x.right != null) {
+            x.right.parent = y;
+        }
+        x.parent = y.parent;
+        replaceChild(y.parent, y, x);
+        x.right = y;
+        y.parent = x;
+        return x;
+    }
+
+    /**
+     * Tells the instrumentation about one rebalancing step, counting a double rotation once
+     * as AVLTree does.
+     *
+     * @param rotation The rotation case.
+     */
+    void rotated(TreeInstrumentation.Rotation rotation) {
+        if (instrumentation != null) {
+            instrumentation.rotated(rotation);
+        }
+    }
+}
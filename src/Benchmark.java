@@ -0,0 +1,410 @@
+//HLDZUH001
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Class for benchmarking the AVL tree on the GenericsKB data, in the style of JMH: every
+ * benchmark is warmed up, then measured over several timed iterations, reporting throughput,
+ * latency percentiles and bytes allocated per operation.
+ */
+public class Benchmark {
+    // File containing the knowledge base
+    private static final String kbFile = "GenericsKB.txt";
+    // File containing queries
+    private static final String queryFile = "GenericsKB-queries.txt";
+    // Dataset sizes benchmarked by default; sizes beyond the file are synthesized from it
+    private static final int[] defaultSizes = {5, 50, 500, 5000, 50000, 500000};
+    // Seed for shuffling the dataset, so every run benchmarks the same subsets
+    private static final long seed = 42;
+
+    // Consumes benchmark results so the JIT cannot drop the work being measured
+    private static volatile long blackhole;
+
+    private static List<KBEntry> dataset;
+    private static List<String> queries;
+
+    /**
+     * Functional interface for one benchmarked operation.
+     */
+    private interface Operation {
+        Object run(int index);
+    }
+
+    /**
+     * Functional interface preparing the state of a benchmark for a dataset size.
+     */
+    private interface Setup {
+        Operation prepare(int size);
+    }
+
+    /**
+     * Class describing a benchmark: its name, whether it runs per dataset size, and its setup.
+     */
+    private static class Case {
+        final String name;
+        final boolean sized;
+        final Setup setup;
+
+        Case(String name, boolean sized, Setup setup) {
+            this.name = name;
+            this.sized = sized;
+            this.setup = setup;
+        }
+    }
+
+    /**
+     * Main method to run the benchmarks.
+     *
+     * @param args Optional settings: --benchmarks=NAME,... (default all), --sizes=N,...,
+     *             --warmup=N and --iterations=N (iterations per benchmark, default 3 and 5),
+     *             --time=MS (length of each iteration, default 1000) and --output=FILE
+     *             (also write the results to a file).
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (arg.startsWith("--") && equals > 2) {
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            } else {
+                System.out.println("Ignoring unrecognised argument: " + arg);
+            }
+        }
+        int[] sizes = options.containsKey("sizes")
+                ? Arrays.stream(options.get("sizes").split(",")).mapToInt(Integer::parseInt).toArray()
+                : defaultSizes;
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "3"));
+        int iterations = Integer.parseInt(options.getOrDefault("iterations", "5"));
+        long iterationNanos = Long.parseLong(options.getOrDefault("time", "1000")) * 1_000_000L;
+        List<String> selected = options.containsKey("benchmarks")
+                ? Arrays.asList(options.get("benchmarks").split(","))
+                : null;
+
+        dataset = new KBLoader().load(kbFile);
+        queries = new KBLoader().readLines(queryFile);
+
+        StringBuilder report = new StringBuilder(String.format("%-14s %9s %14s %12s %10s %10s %10s %10s %12s %12s%n",
+                "Benchmark", "Size", "Ops/s", "Mean ns", "p50 ns", "p90 ns", "p99 ns", "p99.9 ns", "Max ns", "Bytes/op"));
+        System.out.print(report);
+        for (Case benchmark : cases()) {
+            if (selected != null && !selected.contains(benchmark.name)) {
+                continue;
+            }
+            for (int size : benchmark.sized ? sizes : new int[] {dataset.size()}) {
+                String line = measure(benchmark, size, warmup, iterations, iterationNanos);
+                System.out.print(line);
+                report.append(line);
+            }
+        }
+
+        if (options.containsKey("output")) {
+            try (FileWriter writer = new FileWriter(options.get("output"))) {
+                writer.write(report.toString());
+            }
+        }
+    }
+
+    /**
+     * Lists the benchmarks.
+     *
+     * @return The benchmarks in the order they run.
+     */
+    private static List<Case> cases() {
+        List<Case> cases = new ArrayList<>();
+
+        // Reading GenericsKB.txt and bulk loading it, as the application does on startup
+        cases.add(new Case("load", false, size -> index -> {
+            try {
+                AVLTree<String, KBEntry> tree = new AVLTree<>();
+                tree.putAll(new KBLoader().load(kbFile), entry -> entry.term);
+                return tree;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }));
+
+        // One put per operation, starting a new tree every size puts
+        cases.add(new Case("insertRandom", true, size -> inserts(subset(size))));
+        cases.add(new Case("insertSorted", true, size -> {
+            List<KBEntry> entries = subset(size);
+            entries.sort(KBEntry.BY_TERM);
+            return inserts(entries);
+        }));
+
+        // Building a whole tree of the given size with putAll
+        cases.add(new Case("bulkLoad", true, size -> {
+            List<KBEntry> entries = subset(size);
+            return index -> {
+                AVLTree<String, KBEntry> tree = new AVLTree<>();
+                tree.putAll(entries, entry -> entry.term);
+                return tree;
+            };
+        }));
+
+        // The same bulk load split by term range across one shard per core, built in parallel
+        cases.add(new Case("shardedBulkLoad", true, size -> {
+            List<KBEntry> entries = subset(size);
+            int shards = Runtime.getRuntime().availableProcessors();
+            return index -> {
+                ShardedAVLTree<String, KBEntry> tree = new ShardedAVLTree<>(shards, () -> new AVLTree<String, KBEntry>(KBEntry.KEEP_LATEST, true));
+                tree.putAll(entries, entry -> entry.term, ForkJoinPool.commonPool());
+                return tree;
+            };
+        }));
+
+        // Single lookups of terms that are all present, all absent, or taken from the query file
+        cases.add(new Case("searchHit", true, size -> {
+            List<KBEntry> entries = subset(size);
+            AVLTree<String, KBEntry> tree = treeOf(entries);
+            String[] terms = entries.stream().map(entry -> entry.term).toArray(String[]::new);
+            Collections.shuffle(Arrays.asList(terms), new Random(seed));
+            return index -> tree.get(terms[index % terms.length]);
+        }));
+        cases.add(new Case("eytzingerHit", true, size -> {
+            List<KBEntry> entries = subset(size);
+            EytzingerIndex<String, KBEntry> index = new EytzingerIndex<>(treeOf(entries), EytzingerIndex::stringPrefix);
+            String[] terms = entries.stream().map(entry -> entry.term).toArray(String[]::new);
+            Collections.shuffle(Arrays.asList(terms), new Random(seed));
+            return position -> index.get(terms[position % terms.length]);
+        }));
+        cases.add(new Case("searchMiss", true, size -> {
+            List<KBEntry> entries = subset(size);
+            AVLTree<String, KBEntry> tree = treeOf(entries);
+            // Just after an existing term, so every miss descends to a leaf
+            String[] terms = entries.stream().map(entry -> entry.term + "#miss").toArray(String[]::new);
+            return index -> tree.get(terms[index % terms.length]);
+        }));
+        cases.add(new Case("searchQueries", true, size -> {
+            AVLTree<String, KBEntry> tree = treeOf(subset(size));
+            String[] terms = queries.toArray(new String[0]);
+            return index -> tree.get(terms[index % terms.length]);
+        }));
+
+        // The same misses and queries checked against a 1% Bloom filter of the terms first
+        cases.add(new Case("bloomMiss", true, size -> {
+            List<KBEntry> entries = subset(size);
+            AVLTree<String, KBEntry> tree = treeOf(entries);
+            BloomFilter bloom = bloomOf(entries);
+            String[] terms = entries.stream().map(entry -> entry.term + "#miss").toArray(String[]::new);
+            return index -> {
+                String term = terms[index % terms.length];
+                return bloom.mightContain(term) ? tree.get(term) : null;
+            };
+        }));
+        cases.add(new Case("bloomQueries", true, size -> {
+            List<KBEntry> entries = subset(size);
+            AVLTree<String, KBEntry> tree = treeOf(entries);
+            BloomFilter bloom = bloomOf(entries);
+            String[] terms = queries.toArray(new String[0]);
+            return index -> {
+                String term = terms[index % terms.length];
+                return bloom.mightContain(term) ? tree.get(term) : null;
+            };
+        }));
+
+        // The whole query file looked up as one batch
+        cases.add(new Case("batchQueries", true, size -> {
+            AVLTree<String, KBEntry> tree = treeOf(subset(size));
+            return index -> tree.getAll(queries);
+        }));
+
+        // Lookups skewed towards hot terms, straight from the tree and through a cache of 1024 terms
+        cases.add(new Case("searchZipf", true, size -> {
+            AVLTree<String, KBEntry> tree = treeOf(subset(size));
+            String[] terms = zipf(queries, 1 << 16);
+            return index -> tree.get(terms[index % terms.length]);
+        }));
+        cases.add(new Case("cachedZipf", true, size -> {
+            LookupCache<String, KBEntry> cache = new LookupCache<>(treeOf(subset(size)), 1024);
+            String[] terms = zipf(queries, 1 << 16);
+            return index -> cache.get(terms[index % terms.length]);
+        }));
+
+        // Autocomplete on the first three letters of each query: the first ten terms, and the ten most confident
+        cases.add(new Case("prefix10", true, size -> {
+            AVLTree<String, KBEntry> tree = treeOf(subset(size));
+            String[] prefixes = prefixesOf(queries);
+            return index -> AVLTree.prefix(tree, prefixes[index % prefixes.length]).limit(10).count();
+        }));
+        cases.add(new Case("topKPrefix10", true, size -> {
+            AVLTree<String, KBEntry> tree = new AVLTree<>(KBEntry.KEEP_HIGHEST_CONFIDENCE, false, KBEntry.BY_CONFIDENCE);
+            tree.putAll(subset(size), entry -> entry.term);
+            String[] prefixes = prefixesOf(queries);
+            return index -> {
+                String prefix = prefixes[index % prefixes.length];
+                return tree.topK(prefix, AVLTree.prefixEnd(prefix), 10);
+            };
+        }));
+
+        // The same bulk load and lookups with terms and statements held compactly by a TermStore
+        cases.add(new Case("compactBulkLoad", true, size -> {
+            List<KBEntry> entries = subset(size);
+            return index -> {
+                TermStore store = new TermStore(true);
+                List<CompactEntry> compact = new ArrayList<>(entries.size());
+                for (KBEntry entry : entries) {
+                    compact.add(store.encode(entry));
+                }
+                AVLTree<CompactTerm, CompactEntry> tree = new AVLTree<>(CompactEntry.KEEP_HIGHEST_CONFIDENCE);
+                tree.putAll(compact, entry -> entry.term);
+                return tree;
+            };
+        }));
+        cases.add(new Case("compactSearchHit", true, size -> {
+            List<KBEntry> entries = subset(size);
+            TermStore store = new TermStore(true);
+            AVLTree<CompactTerm, CompactEntry> tree = new AVLTree<>(CompactEntry.KEEP_HIGHEST_CONFIDENCE);
+            tree.putAll(entries.stream().map(store::encode).toList(), entry -> entry.term);
+            CompactTerm[] terms = entries.stream().map(entry -> new CompactTerm(entry.term)).toArray(CompactTerm[]::new);
+            Collections.shuffle(Arrays.asList(terms), new Random(seed));
+            return index -> tree.get(terms[index % terms.length]);
+        }));
+
+        // The same bulk load and lookups on the array-backed tree, with its text off the heap
+        cases.add(new Case("arenaBulkLoad", true, size -> {
+            List<KBEntry> entries = subset(size);
+            return index -> {
+                ArenaAVLTree tree = new ArenaAVLTree(KBEntry.KEEP_HIGHEST_CONFIDENCE, true);
+                tree.putAll(entries);
+                return tree;
+            };
+        }));
+        cases.add(new Case("arenaSearchHit", true, size -> {
+            List<KBEntry> entries = subset(size);
+            ArenaAVLTree tree = new ArenaAVLTree(KBEntry.KEEP_HIGHEST_CONFIDENCE, true);
+            tree.putAll(entries);
+            String[] terms = entries.stream().map(entry -> entry.term).toArray(String[]::new);
+            Collections.shuffle(Arrays.asList(terms), new Random(seed));
+            return index -> tree.get(terms[index % terms.length]);
+        }));
+        return cases;
+    }
+
+    private static Operation inserts(List<KBEntry> entries) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        AVLTree<String, KBEntry>[] tree = new AVLTree[1];
+        return index -> {
+            int position = index % entries.size();
+            if (position == 0) {
+                tree[0] = new AVLTree<>();
+            }
+            KBEntry entry = entries.get(position);
+            tree[0].put(entry.term, entry);
+            return tree[0];
+        };
+    }
+
+    /**
+     * Draws terms with a Zipf distribution, so the i-th term is drawn in proportion to 1 / i,
+     * like the skewed traffic of a real query log.
+     *
+     * @param terms The terms to draw from, most popular first.
+     * @param count The number of terms to draw.
+     * @return The drawn terms.
+     */
+    private static String[] zipf(List<String> terms, int count) {
+        double[] cumulative = Workload.zipfCumulative(terms.size());
+        Random random = new Random(seed);
+        String[] drawn = new String[count];
+        for (int i = 0; i < count; i++) {
+            drawn[i] = terms.get(Workload.drawZipf(cumulative, random));
+        }
+        return drawn;
+    }
+
+    private static String[] prefixesOf(List<String> terms) {
+        return terms.stream().map(term -> term.substring(0, Math.min(3, term.length()))).toArray(String[]::new);
+    }
+
+    private static AVLTree<String, KBEntry> treeOf(List<KBEntry> entries) {
+        AVLTree<String, KBEntry> tree = new AVLTree<>();
+        tree.putAll(entries, entry -> entry.term);
+        return tree;
+    }
+
+    private static BloomFilter bloomOf(List<KBEntry> entries) {
+        BloomFilter bloom = new BloomFilter(entries.size(), 0.01);
+        for (KBEntry entry : entries) {
+            bloom.add(entry.term);
+        }
+        return bloom;
+    }
+
+    /**
+     * Takes a random subset of the dataset without repeats, synthesizing sizes beyond it.
+     *
+     * @param size The number of entries to take.
+     * @return The entries, in random order.
+     */
+    private static List<KBEntry> subset(int size) {
+        return new Workload(dataset, seed).entries(size);
+    }
+
+    /**
+     * Warms up and measures one benchmark at one dataset size.
+     *
+     * @return The formatted result line.
+     */
+    private static String measure(Case benchmark, int size, int warmup, int iterations, long iterationNanos) {
+        Operation operation = benchmark.setup.prepare(size);
+        Histogram latency = new Histogram();
+        int index = 0;
+        long operations = 0;
+        long elapsed = 0;
+        long allocated = 0;
+        long consumed = 0;
+
+        for (int iteration = 0; iteration < warmup + iterations; iteration++) {
+            boolean measured = iteration >= warmup;
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long now = start;
+            long count = 0;
+            while (now - start < iterationNanos) {
+                long before = now;
+                Object result = operation.run(index++);
+                now = System.nanoTime();
+                consumed += result == null ? 0 : 1;
+                if (measured) {
+                    latency.record(now - before);
+                }
+                count++;
+            }
+            if (measured) {
+                operations += count;
+                elapsed += now - start;
+                allocated += allocatedBytes() - allocatedBefore;
+            }
+        }
+        blackhole = consumed;
+
+        return String.format("%-14s %9d %14.1f %12.1f %10d %10d %10d %10d %12d %12d%n", benchmark.name, size,
+                operations * 1e9 / elapsed, latency.getMean(), latency.getPercentile(50), latency.getPercentile(90),
+                latency.getPercentile(99), latency.getPercentile(99.9), latency.getMax(), allocated / operations);
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread, as JMH's GC profiler does.
+     * Work handed to other threads, such as a parallel sort, is not included.
+     *
+     * @return The bytes allocated, or 0 if the JVM cannot report them.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
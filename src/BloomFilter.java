@@ -0,0 +1,172 @@
+//HLDZUH001
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class for a Bloom filter over terms: a bit array in which each term added sets k bits chosen
+ * by hashing it. A term with any of its bits clear was never added, so a lookup of it can be
+ * answered as a miss without searching the tree. A term with all of its bits set was probably
+ * added, but may be a false positive, at a rate fixed when the filter is sized.
+ *
+ * <p>The k bit positions come from one 64-bit hash of the term split into two halves, h1 + i * h2,
+ * which is as good as k independent hashes. Bits are set with atomic updates and read with
+ * volatile reads, so terms can be added while other threads check the filter. A term added
+ * before it is put into the tree is never reported absent by a check that finds it in the tree.
+ */
+class BloomFilter {
+    // Most bits a filter may have, so each position fits in the upper half of a 64-bit product
+    private static final long MAX_BITS = 1L << 31;
+
+    private final AtomicLongArray words; // The bit array, 64 bits per word
+    private final long bitCount; // Number of bits in the array
+    private final int hashCount; // Number of bits set per term
+    private final double targetFalsePositiveRate; // False positive rate the filter was sized for
+    private final long expectedTerms; // Number of terms the filter was sized for
+    private final LongAdder addCount = new LongAdder(); // Terms added, counting repeats
+    private final LongAdder checkCount = new LongAdder(); // Terms checked
+    private final LongAdder rejectCount = new LongAdder(); // Terms checked and found absent
+
+    /**
+     * Constructs an empty BloomFilter sized for a number of terms and a false positive rate,
+     * with the optimal number of bits, -n ln(p) / ln(2)^2, and of hashes, (m / n) ln(2).
+     *
+     * @param expectedTerms     The number of distinct terms expected to be added.
+     * @param falsePositiveRate The rate of false positives wanted once they have been, between 0 and 1.
+     */
+    public BloomFilter(long expectedTerms, double falsePositiveRate) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        long terms = Math.max(1, expectedTerms);
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-terms * Math.log(falsePositiveRate) / (ln2 * ln2));
+        bitCount = Math.min(MAX_BITS, Math.max(64, (bits + 63) / 64 * 64));
+        hashCount = (int) Math.max(1, Math.round((double) bitCount / terms * ln2));
+        words = new AtomicLongArray((int) (bitCount / 64));
+        targetFalsePositiveRate = falsePositiveRate;
+        this.expectedTerms = terms;
+    }
+
+    /**
+     * Adds a term.
+     *
+     * @param term The term.
+     */
+    public void add(String term) {
+        long hash = hash(term);
+        long h1 = hash >>> 32;
+        long h2 = hash & 0xFFFFFFFFL;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = position(h1 + i * h2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = words.get(word);
+            // Most bits of a term being added again are already set, so only write when one is not
+            while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask)) {
+                current = words.get(word);
+            }
+        }
+        addCount.increment();
+    }
+
+    /**
+     * Checks whether a term may have been added.
+     *
+     * @param term The term.
+     * @return False if the term was certainly never added, true if it probably was.
+     */
+    public boolean mightContain(String term) {
+        checkCount.increment();
+        long hash = hash(term);
+        long h1 = hash >>> 32;
+        long h2 = hash & 0xFFFFFFFFL;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = position(h1 + i * h2);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                rejectCount.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps a combined hash to a bit position by multiplying, which spreads it evenly over
+     * the array without the division a remainder would take.
+     *
+     * @param combined The combined hash h1 + i * h2.
+     * @return The bit position, from 0 to the bit count.
+     */
+    private long position(long combined) {
+        return ((combined & 0xFFFFFFFFL) * bitCount) >>> 32;
+    }
+
+    /**
+     * Hashes a term to 64 bits: FNV-1a over its characters, then the MurmurHash3 finalizer so
+     * every bit of the result depends on every character.
+     *
+     * @param term The term.
+     * @return The hash.
+     */
+    static long hash(String term) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < term.length(); i++) {
+            hash = (hash ^ term.charAt(i)) * 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    public long getAddCount() {
+        return addCount.sum();
+    }
+
+    public long getCheckCount() {
+        return checkCount.sum();
+    }
+
+    public long getRejectCount() {
+        return rejectCount.sum();
+    }
+
+    /**
+     * Estimates the false positive rate as it is now, from the fraction of bits set: a term
+     * never added passes if all k of its bits happen to be set. Adding more terms than the
+     * filter was sized for raises it above the target.
+     *
+     * @return The estimated rate, between 0 and 1.
+     */
+    public double getFalsePositiveRate() {
+        long set = 0;
+        for (int i = 0; i < words.length(); i++) {
+            set += Long.bitCount(words.get(i));
+        }
+        return Math.pow((double) set / bitCount, hashCount);
+    }
+
+    /**
+     * Formats the filter's size and counts.
+     *
+     * @return The statistics, on one line.
+     */
+    public String getStats() {
+        long checks = getCheckCount();
+        long rejects = getRejectCount();
+        return String.format("Bloom filter: %d terms added (sized for %d), %d bits (%.1f KB), %d hashes, "
+                        + "%.2f%% false positives estimated (target %.2f%%), %d checks, %d definite misses (%.1f%%)",
+                getAddCount(), expectedTerms, bitCount, bitCount / 8192.0, hashCount, 100 * getFalsePositiveRate(),
+                100 * targetFalsePositiveRate, checks, rejects, checks == 0 ? 0.0 : 100.0 * rejects / checks);
+    }
+}
@@ -0,0 +1,30 @@
+//HLDZUH001
+
+import java.util.Comparator;
+import java.util.function.BinaryOperator;
+
+/**
+ * Class representing a knowledge base record in compact form: an interned term and a statement
+ * encoded by a TermStore. The statement is only decoded, by the store, when it is needed, such
+ * as when a search hit is printed.
+ */
+class CompactEntry {
+    // Merge policies deciding which entry to keep when a term is inserted again, as in KBEntry
+    static final BinaryOperator<CompactEntry> KEEP_FIRST = (existing, incoming) -> existing;
+    static final BinaryOperator<CompactEntry> KEEP_LATEST = (existing, incoming) -> incoming;
+    static final BinaryOperator<CompactEntry> KEEP_HIGHEST_CONFIDENCE =
+            (existing, incoming) -> incoming.confidence > existing.confidence ? incoming : existing;
+
+    // Orders entries by confidence, for ranking with topK
+    static final Comparator<CompactEntry> BY_CONFIDENCE = (a, b) -> Double.compare(a.confidence, b.confidence);
+
+    final CompactTerm term; // Term the record describes
+    final byte[] statement; // Statement as encoded by the store
+    final double confidence; // Confidence score of the statement
+
+    CompactEntry(CompactTerm term, byte[] statement, double confidence) {
+        this.term = term;
+        this.statement = statement;
+        this.confidence = confidence;
+    }
+}
@@ -0,0 +1,124 @@
+//HLDZUH001
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Class for a knowledge base index held compactly: an AVLTree of CompactTerms and CompactEntries
+ * encoded by a TermStore, looked up by plain String terms. Entries are encoded as they are put
+ * and decoded only when a lookup finds them, so the statements of terms that are never found are
+ * never rebuilt. Once loading is done, trim() drops the encoding maps and lets lookups decode
+ * on several threads without locking.
+ */
+class CompactIndex implements OrderedIndex<String, KBEntry> {
+    private final TermStore store; // Encodes and decodes the entries
+    private final AVLTree<CompactTerm, CompactEntry> tree; // Encoded entries by term
+
+    /**
+     * Constructs an empty CompactIndex that keeps the highest-confidence entry for each term.
+     *
+     * @param dictionaryEncoded Whether to encode statement words as dictionary numbers, or keep them as UTF-8.
+     */
+    public CompactIndex(boolean dictionaryEncoded) {
+        store = new TermStore(dictionaryEncoded);
+        tree = new AVLTree<>(CompactEntry.KEEP_HIGHEST_CONFIDENCE);
+    }
+
+    public TermStore getStore() {
+        return store;
+    }
+
+    /**
+     * Drops the term store's encoding maps and makes the tree read-only, after which lookups may
+     * run on several threads.
+     */
+    public void trim() {
+        store.trim();
+        tree.freeze();
+    }
+
+    public void put(String key, KBEntry value) {
+        tree.put(store.intern(key), store.encode(value));
+    }
+
+    /**
+     * Bulk loads entries, encoding each one first.
+     *
+     * @param values Entries to be loaded, in any order.
+     * @param keyOf  Function extracting the term each entry is stored under, which must be its own term.
+     */
+    public void putAll(List<? extends KBEntry> values, Function<? super KBEntry, ? extends String> keyOf) {
+        List<CompactEntry> encoded = new ArrayList<>(values.size());
+        for (KBEntry value : values) {
+            encoded.add(store.encode(value));
+        }
+        tree.putAll(encoded, entry -> entry.term);
+    }
+
+    public KBEntry get(String key) {
+        CompactEntry entry = tree.get(new CompactTerm(key));
+        return entry != null ? store.decode(entry) : null;
+    }
+
+    /**
+     * Looks up a whole batch of terms in one walk of the tree, decoding only the entries found.
+     *
+     * @param keys The terms to search for.
+     * @return The entry for each term in the same order as the terms, with null for terms not present.
+     */
+    public List<KBEntry> getAll(List<? extends String> keys) {
+        List<CompactTerm> terms = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            terms.add(new CompactTerm(key));
+        }
+        List<KBEntry> results = new ArrayList<>(keys.size());
+        for (CompactEntry entry : tree.getAll(terms)) {
+            results.add(entry != null ? store.decode(entry) : null);
+        }
+        return results;
+    }
+
+    public KBEntry remove(String key) {
+        CompactEntry removed = tree.remove(new CompactTerm(key));
+        return removed != null ? store.decode(removed) : null;
+    }
+
+    public int size() {
+        return tree.size();
+    }
+
+    public int getHeight() {
+        return tree.getHeight();
+    }
+
+    public int getSearchOpCount() {
+        return tree.getSearchOpCount();
+    }
+
+    public int getInsertOpCount() {
+        return tree.getInsertOpCount();
+    }
+
+    public void resetSearchOpCount() {
+        tree.resetSearchOpCount();
+    }
+
+    public void resetInsertOpCount() {
+        tree.resetInsertOpCount();
+    }
+
+    public void setInstrumentation(TreeInstrumentation instrumentation) {
+        tree.setInstrumentation(instrumentation);
+    }
+
+    /**
+     * Calls an action for every term and its decoded entry, in the order of the terms' UTF-8 bytes.
+     *
+     * @param action The action to call with each term and its entry.
+     */
+    public void forEach(BiConsumer<? super String, ? super KBEntry> action) {
+        tree.forEach((term, entry) -> action.accept(term.toString(), store.decode(entry)));
+    }
+}
@@ -0,0 +1,51 @@
+//HLDZUH001
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Class representing a term stored as UTF-8 bytes, in an object half the size of a String.
+ * Terms compare byte-wise, which orders them by Unicode code point, as in ArenaAVLTree and
+ * KBSnapshot.
+ */
+class CompactTerm implements Comparable<CompactTerm> {
+    private final byte[] bytes; // The term in UTF-8
+
+    /**
+     * Constructs a CompactTerm. Use TermStore.intern to share one copy of each term.
+     *
+     * @param term The term.
+     */
+    public CompactTerm(String term) {
+        bytes = term.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    @Override
+    public int compareTo(CompactTerm other) {
+        return Arrays.compareUnsigned(bytes, other.bytes);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CompactTerm && Arrays.equals(bytes, ((CompactTerm) other).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    /**
+     * Decodes the term.
+     *
+     * @return The term as a String.
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,206 @@
+//HLDZUH001
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.BinaryOperator;
+
+/**
+ * Class for checking the tree engines against java.util.TreeMap. Random sequences of puts and
+ * removes are applied to an engine and to a TreeMap, and every so often the engine's tree is
+ * walked to assert its own invariants as well as key order:
+ * <ul>
+ * <li>avl: each node's height is one more than its taller child's, the heights of its children
+ * differ by at most one, and its subtree size is right.</li>
+ * <li>avl-cow: an AVL tree in copy-on-write mode, as KBIngester and ShardedAVLTree use, checked
+ * as avl. Besides, a snapshot taken at each walk must still hold the same keys and values, and
+ * pass the same checks, at the next walk, as a reader holding an older version relies on.</li>
+ * <li>redblack: no red node has a red child, and every path down has the same number of black
+ * nodes.</li>
+ * <li>treap: no node has a higher priority than its parent.</li>
+ * <li>wavl: each child's rank is one or two below its parent's, counting a missing child as
+ * rank -1, and every leaf has rank 0.</li>
+ * </ul>
+ * After each sequence the engine must hold the same keys and values as the TreeMap, and be
+ * empty once every key is removed. Last, keys are inserted in sorted order and the tree checked
+ * again.
+ */
+class EngineCheck {
+    // Names of the engines that can be checked: those OrderedIndex.named() makes, and avl-cow
+    static final List<String> ENGINES = List.of("avl", "avl-cow", "redblack", "treap", "wavl");
+
+    private static final int SEQUENCES = 30; // Random sequences per engine
+    private static final int OPERATIONS = 20_000; // Puts and removes per sequence
+    private static final int CHECK_INTERVAL = 97; // Operations between walks of the whole tree
+    private static final int SORTED_KEYS = 100_000; // Keys inserted in order at the end
+
+    /**
+     * Checks one engine.
+     *
+     * @param engine The engine's name, one of ENGINES.
+     * @param seed   The seed of the first sequence; each later sequence uses the next seed.
+     * @return A one-line summary of what was checked.
+     * @throws IllegalStateException If the engine disagrees with the TreeMap or breaks an invariant.
+     */
+    public static String check(String engine, long seed) {
+        for (int sequence = 0; sequence < SEQUENCES; sequence++) {
+            // Half the sequences use few keys, so puts often replace and removes often hit
+            int keyRange = sequence % 2 == 0 ? 200 : 5000;
+            checkSequence(engine, seed + sequence, keyRange);
+        }
+        OrderedIndex<Integer, Integer> tree = newTree(engine);
+        for (int key = 0; key < SORTED_KEYS; key++) {
+            tree.put(key, key);
+        }
+        checkInvariants(engine, tree, "sorted inserts");
+        return String.format("%s: %d sequences of %d puts and removes agree with TreeMap; %d sorted inserts give height %d",
+                engine, SEQUENCES, OPERATIONS, SORTED_KEYS, tree.getHeight());
+    }
+
+    private static OrderedIndex<Integer, Integer> newTree(String engine) {
+        BinaryOperator<Integer> replace = (existing, incoming) -> incoming;
+        return engine.equals("avl-cow") ? new AVLTree<>(replace, true) : OrderedIndex.named(engine, replace);
+    }
+
+    private static void checkSequence(String engine, long seed, int keyRange) {
+        Random random = new Random(seed);
+        OrderedIndex<Integer, Integer> tree = newTree(engine);
+        TreeMap<Integer, Integer> reference = new TreeMap<>();
+        AVLTree<Integer, Integer> version = null; // Snapshot taken at the last walk, for avl-cow
+        TreeMap<Integer, Integer> versionContents = null; // What the snapshot held when it was taken
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            int key = random.nextInt(keyRange);
+            // Two puts to each remove while the tree grows, then as many of each
+            if (random.nextInt(3) < (operation < OPERATIONS / 2 ? 2 : 1)) {
+                tree.put(key, operation);
+                reference.put(key, operation);
+            } else if (!Objects.equals(tree.remove(key), reference.remove(key))) {
+                throw failure(engine, seed, "remove(" + key + ") returned the wrong value");
+            }
+            if (operation % CHECK_INTERVAL == 0) {
+                String where = "seed " + seed + ", operation " + operation;
+                checkInvariants(engine, tree, where);
+                if (engine.equals("avl-cow")) {
+                    if (version != null) {
+                        checkVersion(version, versionContents, where);
+                    }
+                    version = ((AVLTree<Integer, Integer>) tree).snapshot();
+                    versionContents = new TreeMap<>(reference);
+                }
+            }
+        }
+        checkInvariants(engine, tree, "seed " + seed);
+
+        if (tree.size() != reference.size()) {
+            throw failure(engine, seed, "size " + tree.size() + ", expected " + reference.size());
+        }
+        List<Integer> keys = new ArrayList<>();
+        tree.forEach((key, value) -> keys.add(key));
+        if (!keys.equals(new ArrayList<>(reference.keySet()))) {
+            throw failure(engine, seed, "forEach does not give the keys in order");
+        }
+        for (int key = 0; key < keyRange; key++) {
+            if (!Objects.equals(tree.get(key), reference.get(key))) {
+                throw failure(engine, seed, "get(" + key + ") returned the wrong value");
+            }
+        }
+        for (int key : reference.keySet()) {
+            tree.remove(key);
+        }
+        if (tree.size() != 0 || tree.getHeight() != 0) {
+            throw failure(engine, seed, "not empty after removing every key");
+        }
+    }
+
+    /**
+     * Checks that a snapshot of a copy-on-write tree was not changed by the writes since it was taken.
+     *
+     * @param version  The snapshot.
+     * @param contents The keys and values the tree held when the snapshot was taken.
+     * @param where    The seed and operation, for the failure message.
+     */
+    private static void checkVersion(AVLTree<Integer, Integer> version, Map<Integer, Integer> contents, String where) {
+        checkInvariants("avl-cow", version, where + ", older version");
+        List<Map.Entry<Integer, Integer>> entries = new ArrayList<>();
+        version.forEach((key, value) -> entries.add(Map.entry(key, value)));
+        if (!entries.equals(new ArrayList<>(contents.entrySet()))) {
+            throw new IllegalStateException("avl-cow, " + where + ": an older version changed under a reader");
+        }
+    }
+
+    private static IllegalStateException failure(String engine, long seed, String message) {
+        return new IllegalStateException(engine + ", seed " + seed + ": " + message);
+    }
+
+    private static void checkInvariants(String engine, OrderedIndex<Integer, Integer> tree, String where) {
+        try {
+            if (tree instanceof AVLTree) {
+                ((AVLTree<Integer, Integer>) tree).checkInvariants();
+            } else {
+                checkBalanced(engine, ((BalancedTree<Integer, Integer>) tree).root, null, null, null);
+            }
+        } catch (IllegalStateException e) {
+            throw new IllegalStateException(engine + ", " + where + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks a subtree of one of the parent-linked engines.
+     *
+     * @return For redblack, the number of black nodes on each path down, counting the missing
+     *         children below as one; for wavl, the subtree's rank; otherwise 0.
+     */
+    private static int checkBalanced(String engine, BalancedNode<Integer, Integer> node,
+                                     BalancedNode<Integer, Integer> parent, Integer low, Integer high) {
+        if (node == null) {
+            return engine.equals("redblack") ? 1 : -1;
+        }
+        if (node.parent != parent) {
+            throw new IllegalStateException("node " + node.key + " has the wrong parent");
+        }
+        checkOrder(node.key, low, high);
+        int left = checkBalanced(engine, node.left, node, low, node.key);
+        int right = checkBalanced(engine, node.right, node, node.key, high);
+        switch (engine) {
+            case "redblack":
+                if (left != right) {
+                    throw new IllegalStateException("paths below node " + node.key + " have different black heights");
+                }
+                if (node.balance == RedBlackTree.RED && (isRed(node.left) || isRed(node.right))) {
+                    throw new IllegalStateException("red node " + node.key + " has a red child");
+                }
+                return left + (node.balance == RedBlackTree.BLACK ? 1 : 0);
+            case "treap":
+                if (parent != null && node.balance > parent.balance) {
+                    throw new IllegalStateException("node " + node.key + " has a higher priority than its parent");
+                }
+                return 0;
+            case "wavl":
+                int leftDifference = node.balance - left;
+                int rightDifference = node.balance - right;
+                if (leftDifference < 1 || leftDifference > 2 || rightDifference < 1 || rightDifference > 2) {
+                    throw new IllegalStateException("node " + node.key + " has rank differences "
+                            + leftDifference + " and " + rightDifference);
+                }
+                if (node.left == null && node.right == null && node.balance != 0) {
+                    throw new IllegalStateException("leaf " + node.key + " has rank " + node.balance);
+                }
+                return node.balance;
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+    }
+
+    private static boolean isRed(BalancedNode<?, ?> node) {
+        return node != null && node.balance == RedBlackTree.RED;
+    }
+
+    private static void checkOrder(Integer key, Integer low, Integer high) {
+        if (low != null && key <= low || high != null && key >= high) {
+            throw new IllegalStateException("key " + key + " is out of order");
+        }
+    }
+}
@@ -1,366 +1,263 @@
 //HLDZUH001
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.ref.Reference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Random;
-import java.util.Scanner;
+import java.util.Locale;
+import java.util.Map;
 
-class AVLNodeExperiment {
-    String data;
-    AVLNodeExperiment left;
-    AVLNodeExperiment right;
-    int height;
+/**
+ * Class for conducting experimentation on AVL tree performance, and on the other balanced tree
+ * engines on the same data.
+ */
+public class Experimentation {
+    // File containing queries
+    private static final String queryFile = "GenericsKB-queries.txt";
+    // Different dataset sizes for experimentation
+    private static final int[] datasetSizes = {5, 50, 500, 5000, 50000};
+    // Number of runs per dataset size, each on a different subset
+    private static final int runs = 10;
 
     /**
-     * Constructs an AVLNode with the given data.
+     * Main method to run the experimentation. For each engine and dataset size it counts the
+     * operations of inserting and searching random subsets, then replays a mixed workload on
+     * several threads against a tree of that size, writing throughput, latency and memory to
+     * workload.txt. Every engine is given the same subsets, insertion orders and workloads.
+     * The operation counts go to experimentation.txt for the AVL tree and to
+     * experimentation-ENGINE.txt for any other engine, and the depth and rotation statistics of
+     * every engine to instrumentation.txt.
      *
-     * @param data The data to be stored in the node.
+     * @param args Optional settings: --engines=NAME,... (avl, redblack, treap and wavl; default
+     *             avl), --sizes=N,... (default 5 to 50,000; sizes beyond the file
+     *             are synthesized from it), --seed=N (default 42), --order=uniform|sorted|zipfian|adversarial
+     *             (insertion order, default uniform), and for the replay --threads=N (default 4),
+     *             --operations=N (per thread, default 100,000), --writes=F (fraction of writes,
+     *             default 0.1), --hits=F (fraction on loaded terms, default 0.9) and --zipf=true
+     *             (favour popular terms, rather than picking any equally). Given --check=NAME,...
+     *             instead, it only checks those engines' invariants against java.util.TreeMap on
+     *             random puts and removes from --seed onwards, and stops at the first failure.
      */
-    public AVLNodeExperiment(String data) {
-        this.data = data;
-        left = right = null;
-        height = 1;
-    }
-}
-
-class AVLTreeExperiment {
-    AVLNodeExperiment root;
-    private int searchOpCount = 0;
-    private int insertOpCount = 0;
-
-    /**
-     * Constructs an empty AVL tree.
-     */
-    public AVLTreeExperiment() {
-        root = null;
-    }
-
-    public int getSearchOpCount() {
-        return searchOpCount;
-    }
-
-    public int getInsertOpCount() {
-        return insertOpCount;
-    }
-
-    public void resetSearchOpCount() {
-        searchOpCount = 0;
-    }
-
-    public void resetInsertOpCount() {
-        insertOpCount = 0;
-    }
-
-    public void insert(String data) {
-        root = insertRec(root, data);
-        if (!isBalanced(root)) {
-            root = balance(root);
-        }
-    }
-
-    private AVLNodeExperiment insertRec(AVLNodeExperiment node, String data) {
-        if (node == null) {
-            insertOpCount++;
-            return new AVLNodeExperiment(data);
-        }
-        int comparisonResult = data.compareTo(node.data);
-        if (comparisonResult < 0) {
-            insertOpCount++;
-            node.left = insertRec(node.left, data);
-        } else if (comparisonResult > 0) {
-            insertOpCount++;
-            node.right = insertRec(node.right, data);
-        } else {
-            return node;
-        }
-
-        node.height = 1 + Math.max(getHeight(node.left), getHeight(node.right));
-
-        int balance = getBalanceFactor(node);
-
-        // If node becomes unbalanced after new data is inserted, then there are 4 cases
-
-        // Left Left Case
-        if (balance > 1 && data.compareTo(node.left.data) < 0) {
-            return rightRotate(node);
-        }
-
-        // Right Right Case
-        if (balance < -1 && data.compareTo(node.right.data) > 0) {
-            return leftRotate(node);
-        }
-
-        // Left Right Case
-        if (balance > 1 && data.compareTo(node.left.data) > 0) {
-            node.left = leftRotate(node.left);
-            return rightRotate(node);
+    public static void main(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (arg.startsWith("--") && equals > 2) {
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            } else {
+                System.out.println("Ignoring unrecognised argument: " + arg);
+            }
         }
-
-        // Right Left Case
-        if (balance < -1 && data.compareTo(node.right.data) < 0) {
-            node.right = rightRotate(node.right);
-            return leftRotate(node);
+        List<String> engines = Arrays.asList(options.getOrDefault("engines", "avl").split(","));
+        for (String engine : engines) {
+            if (!OrderedIndex.ENGINES.contains(engine)) {
+                throw new IllegalArgumentException("Unknown engine: " + engine);
+            }
         }
-
-        return node;
-    }
-
-    public boolean search(String searchTerm) {
-        return searchRec(root, searchTerm);
-    }
-
-    private boolean searchRec(AVLNodeExperiment node, String searchTerm) {
-        if (node == null) {
-            return false;
+        int[] sizes = options.containsKey("sizes")
+                ? Arrays.stream(options.get("sizes").split(",")).mapToInt(Integer::parseInt).toArray()
+                : datasetSizes;
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        if (options.containsKey("check")) {
+            for (String engine : options.get("check").split(",")) {
+                if (!EngineCheck.ENGINES.contains(engine)) {
+                    throw new IllegalArgumentException("Unknown engine: " + engine);
+                }
+                System.out.println(EngineCheck.check(engine, seed));
+            }
+            return;
         }
+        Workload.Order order = Workload.Order.valueOf(options.getOrDefault("order", "uniform").toUpperCase(Locale.ROOT));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+        int operations = Integer.parseInt(options.getOrDefault("operations", "100000"));
+        double writeRatio = Double.parseDouble(options.getOrDefault("writes", "0.1"));
+        double hitRatio = Double.parseDouble(options.getOrDefault("hits", "0.9"));
+        boolean zipfian = Boolean.parseBoolean(options.getOrDefault("zipf", "false"));
 
-        String[] parts = node.data.split("\t");
-        String term = parts[0];
+        try {
+            // Reading the dataset from file
+            List<KBEntry> dataset = readDatasetFromFile("GenericsKB.txt");
+            // Reading the queries once, rather than once per run
+            List<String> queries = new KBLoader().readLines(queryFile);
+            // Depth, time and rotation statistics for each dataset size
+            StringBuilder instrumentation = new StringBuilder();
+
+            // Throughput, latency and memory of the replayed workload for each dataset size
+            StringBuilder workloadReport = new StringBuilder(String.format(
+                    "%-9s %-9s %-11s %7s %12s %12s %10s %8s %8s %9s %10s %7s %9s %6s%n", "Engine", "Size", "Order",
+                    "Threads", "Load ops/s", "Ops/s", "Mean ns", "p50 ns", "p99 ns", "p99.9 ns", "Max ns", "Hit %",
+                    "Heap MB", "Height"));
+            System.out.print(workloadReport);
+
+            for (String engine : engines) {
+                // FileWriter to write results to a file
+                FileWriter writer = new FileWriter(engine.equals("avl") ? "experimentation.txt"
+                        : "experimentation-" + engine + ".txt");
+                // Writing headers to the file
+                writer.write("Dataset Size\tBest Insert\tAverage Insert\tWorst Insert\tBest Search\tAverage Search\tWorst Search\n");
+
+                // Iterating over different dataset sizes
+                for (int size : sizes) {
+                    TreeStatistics statistics = new TreeStatistics();
+                    writer.write(countOperations(engine, dataset, queries, size, order, seed, statistics));
+                    instrumentation.append("Dataset Size ").append(size).append(", ").append(engine).append(" engine\n")
+                            .append(statistics.report()).append('\n');
+
+                    String line = replay(engine, new Workload(dataset, seed), size, order, threads, operations,
+                            writeRatio, hitRatio, zipfian);
+                    System.out.print(line);
+                    workloadReport.append(line);
+                }
 
-        int comparisonResult = searchTerm.compareTo(term);
-        if (comparisonResult == 0) {
-            searchOpCount++;
-            return true;
-        } else if (comparisonResult < 0) {
-            searchOpCount++;
-            return searchRec(node.left, searchTerm);
-        } else {
-            searchOpCount++;
-            return searchRec(node.right, searchTerm);
+                // Closing the FileWriter
+                writer.close();
+            }
+            try (FileWriter statisticsWriter = new FileWriter("instrumentation.txt")) {
+                statisticsWriter.write(instrumentation.toString());
+            }
+            try (FileWriter workloadWriter = new FileWriter("workload.txt")) {
+                workloadWriter.write(workloadReport.toString());
+            }
+            System.out.println("Experiment completed. Data stored in experimentation.txt, instrumentation.txt and workload.txt"
+                    + (engines.equals(List.of("avl")) ? "." : ", with the counts of other engines in experimentation-ENGINE.txt."));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Calculates the height of a node.
+     * Inserts random subsets of one size into trees, one subset per run, and searches each tree
+     * for every query, counting the operations of each insert and of each search that finds its
+     * query.
      *
-     * @param node The node to calculate the height for.
-     * @return The height of the node.
+     * @param engine     The kind of tree.
+     * @param statistics Instrumentation recording the depth, time and rotations of the runs.
+     * @return The best, average and worst counts, formatted as a line of experimentation.txt.
      */
-    private int getHeight(AVLNodeExperiment node) {
-        if (node == null) {
-            return 0;
-        }
-        return node.height;
-    }
+    private static String countOperations(String engine, List<KBEntry> dataset, List<String> queries, int size,
+                                          Workload.Order order, long seed, TreeStatistics statistics) {
+        // Operation counts are summarised as they are recorded, so large sizes need little memory
+        Histogram insertOpCountValues = new Histogram();
+        Histogram searchOpCountValues = new Histogram();
+
+        // Performing experiments multiple times for statistical analysis
+        for (int run = 0; run < runs; run++) {
+            // The same kind of tree the application runs, keeping the first entry for a repeated term
+            OrderedIndex<String, KBEntry> tree = OrderedIndex.named(engine, KBEntry.KEEP_FIRST);
+            tree.setInstrumentation(statistics);
+            // Each run draws a different subset without repeats, the same on every run of the program
+            Workload workload = new Workload(dataset, seed + run);
+            List<KBEntry> subset = workload.insertionOrder(workload.entries(size), order);
+
+            // Inserting items into the tree
+            for (KBEntry item : subset) {
+                tree.put(item.term, item);
+                insertOpCountValues.record(tree.getInsertOpCount());
+                tree.resetInsertOpCount();
+            }
 
-    /**
-     * Calculates the balance factor for a given node.
-     *
-     * @param node The node to calculate the balance factor for.
-     * @return The balance factor of the node.
-     */
-    private int getBalanceFactor(AVLNodeExperiment node) {
-        if (node == null) {
-            return 0;
+            // Searching for queries in the tree, counting the operations of every search that finds its query
+            for (String query : queries) {
+                boolean found = tree.get(query) != null;
+                if (found) {
+                    searchOpCountValues.record(tree.getSearchOpCount());
+                }
+                tree.resetSearchOpCount();
+            }
         }
-        return getHeight(node.left) - getHeight(node.right);
-    }
 
-    /**
-     * Rotates a node on the AVL tree right.
-     *
-     * @param y The node to perform the rotation on.
-     * @return The new root node after rotation.
-     */
-    private AVLNodeExperiment rightRotate(AVLNodeExperiment y) {
-        AVLNodeExperiment x = y.left;
-        AVLNodeExperiment swapVariable = x.right;
-
-        // Perform rotation
-        x.right = y;
-        y.left = swapVariable;
-
-        // Update heights
-        y.height = Math.max(getHeight(y.left), getHeight(y.right)) + 1;
-        x.height = Math.max(getHeight(x.left), getHeight(x.right)) + 1;
+        // Calculation of worst case (max), best case (min), and avg case
+        long minInsertOpCount = insertOpCountValues.getMin();
+        long maxInsertOpCount = insertOpCountValues.getMax();
+        long avgInsertOpCount = (long) insertOpCountValues.getMean();
+        long minSearchOpCount = searchOpCountValues.getMin();
+        long maxSearchOpCount = searchOpCountValues.getMax();
+        long avgSearchOpCount = (long) searchOpCountValues.getMean();
 
-        // Return new root
-        return x;
+        return String.format("%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\n", size, minInsertOpCount, avgInsertOpCount,
+                maxInsertOpCount, minSearchOpCount, avgSearchOpCount, maxSearchOpCount);
     }
 
     /**
-     * Rotates a node on the AVL tree left.
+     * Loads a tree in an insertion order, timing the inserts and measuring the heap the tree
+     * takes, then replays a mixed workload against it on several threads. With writes on several
+     * threads an AVL tree is copy-on-write, as the application's live ingestion uses it, and any
+     * other engine is locked by the replay. Otherwise it is a plain tree.
      *
-     * @param x The node to perform the rotation on.
-     * @return The new root node after rotation.
+     * @param engine The kind of tree.
+     * @return The formatted result line.
+     * @throws InterruptedException If interrupted while waiting for the replay.
      */
-    private AVLNodeExperiment leftRotate(AVLNodeExperiment x) {
-        AVLNodeExperiment y = x.right;
-        AVLNodeExperiment swapVariable = y.left;
-
-        // Perform rotation
-        y.left = x;
-        x.right = swapVariable;
-
-        // Update heights
-        x.height = Math.max(getHeight(x.left), getHeight(x.right)) + 1;
-        y.height = Math.max(getHeight(y.left), getHeight(y.right)) + 1;
-
-        // Return new root
-        return y;
-    }
-
-    private boolean isBalanced(AVLNodeExperiment node) {
-        int balanceFactor = getBalanceFactor(node);
-        return balanceFactor >= -1 && balanceFactor <= 1;
-    }
-
-    private AVLNodeExperiment balance(AVLNodeExperiment node) {
-        if (node == null) {
-            return null;
+    private static String replay(String engine, Workload workload, int size, Workload.Order order, int threads,
+                                 int operations, double writeRatio, double hitRatio, boolean zipfian)
+            throws InterruptedException {
+        List<KBEntry> entries = workload.entries(size);
+        List<KBEntry> inserts = workload.insertionOrder(entries, order);
+        List<List<Workload.Operation>> streams = new ArrayList<>();
+        for (int stream = 0; stream < threads; stream++) {
+            streams.add(workload.operations(entries, operations, writeRatio, hitRatio, zipfian, stream));
         }
 
-        int balanceFactor = getBalanceFactor(node);
-
-        // Left subtree is heavier
-        if (balanceFactor > 1) {
-            // Left-Left case
-            if (getHeight(node.left.left) >= getHeight(node.left.right)) {
-                return rightRotate(node);
-            }
-            // Left-Right case
-            else {
-                node.left = leftRotate(node.left);
-                return rightRotate(node);
-            }
+        long heapBefore = usedHeap();
+        OrderedIndex<String, KBEntry> tree = engine.equals("avl")
+                ? new AVLTree<>(KBEntry.KEEP_LATEST, writeRatio > 0 && threads > 1)
+                : OrderedIndex.named(engine, KBEntry.KEEP_LATEST);
+        long start = System.nanoTime();
+        for (KBEntry entry : inserts) {
+            tree.put(entry.term, entry);
         }
-        // Right subtree is heavier
-        else if (balanceFactor < -1) {
-            // Right-Right case
-            if (getHeight(node.right.right) >= getHeight(node.right.left)) {
-                return leftRotate(node);
-            }
-            // Right-Left case
-            else {
-                node.right = rightRotate(node.right);
-                return leftRotate(node);
-            }
-        }
-        return node;
+        long loadNanos = System.nanoTime() - start;
+        long heapBytes = usedHeap() - heapBefore;
+        // Keep the workload reachable until measured, so only the tree's own growth is counted
+        Reference.reachabilityFence(entries);
+        Reference.reachabilityFence(inserts);
+
+        Replay.Result result = Replay.run(tree, streams);
+        Histogram latency = result.latency;
+        return String.format("%-9s %-9d %-11s %7d %12.1f %12.1f %10.1f %8d %8d %9d %10d %7.1f %9.1f %6d%n", engine,
+                size, order.name().toLowerCase(Locale.ROOT), threads, inserts.size() * 1e9 / Math.max(1, loadNanos),
+                result.getThroughput(), latency.getMean(), latency.getPercentile(50), latency.getPercentile(99),
+                latency.getPercentile(99.9), latency.getMax(),
+                result.lookups == 0 ? 0.0 : 100.0 * result.hits / result.lookups, heapBytes / 1048576.0,
+                tree.getHeight());
     }
-}
-
-/**
- * Class for conducting experimentation on AVL tree performance.
- */
-public class Experimentation {
-    // File containing queries
-    private static final String queryFile = "GenericsKB-queries.txt";
-    // Different dataset sizes for experimentation
-    private static final int[] datasetSizes = {5, 50, 500, 5000, 50000};
 
     /**
-     * Main method to run the experimentation.
+     * Measures the heap in use after full collections. A full collection may leave some dead
+     * objects in place rather than move the live ones around them, and only every few
+     * collections compacts everything, so the least in use after several collections is taken.
+     * The difference between two measurements is then close to what was retained in between.
      *
-     * @param args The command line arguments (not used).
+     * @return The bytes in use.
      */
-    public static void main(String[] args) {
-        try {
-            // FileWriter to write results to a file
-            FileWriter writer = new FileWriter("experimentation.txt");
-            // Writing headers to the file
-            writer.write("Dataset Size\tBest Insert\tAverage Insert\tWorst Insert\tBest Search\tAverage Search\tWorst Search\n");
-
-            // Reading the dataset from file
-            List<String> dataset = readDatasetFromFile("GenericsKB.txt");
-
-            // Iterating over different dataset sizes
-            for (int size : datasetSizes) {
-                List<Integer> insertOpCountValues = new ArrayList<>();
-                List<Integer> searchOpCountValues = new ArrayList<>();
-
-                // Performing experiments multiple times for statistical analysis
-                for (int i = 0; i < 10; i++) {
-                    AVLTreeExperiment avl = new AVLTreeExperiment();
-                    List<String> subset = generateRandomSubset(size, dataset);
-                    int insertOpCount = 0;
-                    int searchOpCount = 0;
-
-                    // Inserting items into AVL tree
-                    for (String item : subset) {
-                        avl.insert(item);
-                        insertOpCount = avl.getInsertOpCount();
-                        insertOpCountValues.add(insertOpCount);
-                        avl.resetInsertOpCount();
-                    }
-
-                    // Searching for queries in AVL tree
-                    try {
-                        Scanner scanner = new Scanner(new File(queryFile));
-                        while (scanner.hasNextLine()) {
-                            String query = scanner.nextLine().trim();
-                            boolean found = avl.search(query);
-                            if (found) {
-                                searchOpCount = avl.getSearchOpCount();
-                            }
-                            avl.resetSearchOpCount();
-                        }
-                        scanner.close();
-                    } catch (FileNotFoundException e) {
-                        e.printStackTrace();
-                    }
-                    searchOpCountValues.add(searchOpCount);
-                }
-
-                // Calculation of worst case (max), best case (min), and avg case
-                int minInsertOpCount = insertOpCountValues.stream().min(Integer::compareTo).orElse(0);
-                int maxInsertOpCount = insertOpCountValues.stream().max(Integer::compareTo).orElse(0);
-                int avgInsertOpCount = (int) insertOpCountValues.stream().mapToInt(Integer::intValue).average().orElse(0);
-                int minSearchOpCount = searchOpCountValues.stream().min(Integer::compareTo).orElse(0);
-                int maxSearchOpCount = searchOpCountValues.stream().max(Integer::compareTo).orElse(0);
-                int avgSearchOpCount = (int) searchOpCountValues.stream().mapToInt(Integer::intValue).average().orElse(0);
-
-                // Writing results to file
-                writer.write(String.format("%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\n", size, minInsertOpCount, avgInsertOpCount,
-                        maxInsertOpCount, minSearchOpCount, avgSearchOpCount, maxSearchOpCount));
-            }
-
-            // Closing the FileWriter
-            writer.close();
-            System.out.println("Experiment completed. Data stored in experimentation.txt.");
-        } catch (IOException e) {
-            e.printStackTrace();
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int collection = 0; collection < 5; collection++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
         }
+        return used;
     }
 
     /**
      * Reads dataset from a file.
      *
      * @param fileName The name of the file containing the dataset.
-     * @return List of strings representing the dataset.
+     * @return List of entries parsed from the dataset.
      */
-    private static List<String> readDatasetFromFile(String fileName) {
-        List<String> dataset = new ArrayList<>();
+    private static List<KBEntry> readDatasetFromFile(String fileName) {
+        List<KBEntry> dataset = new ArrayList<>();
         try {
-            Scanner scanner = new Scanner(new File(fileName));
-            while (scanner.hasNextLine()) {
-                dataset.add(scanner.nextLine());
-            }
-            scanner.close();
-        } catch (FileNotFoundException e) {
+            dataset = new KBLoader().load(fileName);
+        } catch (IOException e) {
             e.printStackTrace();
         }
         return dataset;
     }
-
-    /**
-     * Generates a random subset of the dataset.
-     *
-     * @param size    The size of the subset to generate.
-     * @param dataset The dataset from which to generate the subset.
-     * @return List of strings representing the generated subset.
-     */
-    private static List<String> generateRandomSubset(int size, List<String> dataset) {
-        List<String> subset = new ArrayList<>();
-        Random random = new Random();
-        for (int i = 0; i < size; i++) {
-            int index = random.nextInt(dataset.size());
-            subset.add(dataset.get(index));
-        }
-        return subset;
-    }
 }
@@ -0,0 +1,149 @@
+//HLDZUH001
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Class for a read-only index built from a tree, laid out for fast lookups. The keys are
+ * stored in Eytzinger order, the order of a breadth-first walk of a perfectly balanced tree, in
+ * one array, so the children of slot i are slots 2i and 2i + 1. The first levels of every
+ * search share a few cache lines, and a search descends without following pointers or branching
+ * on the comparison, so the processor can fetch the next level ahead.
+ *
+ * <p>Comparing two keys normally means following each key to its own object. Given an
+ * order-preserving prefix function, such as stringPrefix, the index also keeps a long per slot
+ * in a parallel array and compares those first, so most levels of a search touch only that
+ * array. The full keys are compared only where prefixes tie.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+class EytzingerIndex<K extends Comparable<K>, V> {
+    private final int size; // Number of keys
+    private final Object[] keys; // Keys in Eytzinger order, from slot 1
+    private final Object[] values; // Value of each slot's key
+    private final ToLongFunction<? super K> prefixOf; // Order-preserving key prefix, or null
+    private final long[] prefixes; // Prefix of each slot's key, biased for a signed compare, or null
+    private final LongAdder searchOpCount = new LongAdder(); // Counter for search operations, safe across threads
+
+    /**
+     * Builds an index holding a tree's keys and values as they are now. Takes O(n).
+     *
+     * @param tree     The tree to copy, which should not be written to while this runs.
+     * @param prefixOf Function giving each key a long that never sorts it after a greater key,
+     *                 or null to compare whole keys throughout.
+     */
+    public EytzingerIndex(OrderedIndex<K, V> tree, ToLongFunction<? super K> prefixOf) {
+        List<K> sortedKeys = new ArrayList<>(tree.size());
+        List<V> sortedValues = new ArrayList<>(tree.size());
+        tree.forEach((key, value) -> {
+            sortedKeys.add(key);
+            sortedValues.add(value);
+        });
+        size = sortedKeys.size();
+        keys = new Object[size + 1];
+        values = new Object[size + 1];
+        this.prefixOf = prefixOf;
+        prefixes = prefixOf != null ? new long[size + 1] : null;
+        place(sortedKeys, sortedValues, 0, 1);
+    }
+
+    /**
+     * Fills a subtree of the layout with sorted keys by an in-order walk of its slots.
+     *
+     * @param next The index of the next sorted key to place.
+     * @param slot The root slot of the subtree.
+     * @return The index of the next sorted key after the subtree.
+     */
+    private int place(List<K> sortedKeys, List<V> sortedValues, int next, int slot) {
+        // The depth is at most about 31, so the recursion is shallow
+        if (slot <= size) {
+            next = place(sortedKeys, sortedValues, next, 2 * slot);
+            keys[slot] = sortedKeys.get(next);
+            values[slot] = sortedValues.get(next);
+            if (prefixes != null) {
+                prefixes[slot] = prefixOf.applyAsLong(sortedKeys.get(next)) ^ Long.MIN_VALUE;
+            }
+            next = place(sortedKeys, sortedValues, next + 1, 2 * slot + 1);
+        }
+        return next;
+    }
+
+    /**
+     * Packs the first four characters of a string into a long, with missing characters as 0,
+     * in the order String.compareTo uses. Compared unsigned, as the index does, a string never
+     * packs to more than a greater string.
+     *
+     * @param term The string.
+     * @return The packed characters.
+     */
+    public static long stringPrefix(String term) {
+        long prefix = 0;
+        for (int i = 0; i < 4; i++) {
+            prefix = (prefix << 16) | (i < term.length() ? term.charAt(i) : 0);
+        }
+        return prefix;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getSearchOpCount() {
+        return searchOpCount.intValue();
+    }
+
+    /**
+     * Looks up the value stored under a key. The search always runs to the bottom of the layout,
+     * about log2 n levels, choosing each child from the comparison arithmetically, and then
+     * steps back up to the smallest key not below the search key.
+     *
+     * @param key The key to search for.
+     * @return The value for the key, or null if the key is not present.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        int slot = 1;
+        int steps = 0;
+        if (prefixes != null) {
+            long prefix = prefixOf.applyAsLong(key) ^ Long.MIN_VALUE;
+            while (slot <= size) {
+                long slotPrefix = prefixes[slot];
+                boolean below = slotPrefix < prefix
+                        || (slotPrefix == prefix && ((K) keys[slot]).compareTo(key) < 0);
+                slot = 2 * slot + (below ? 1 : 0);
+                steps++;
+            }
+        } else {
+            while (slot <= size) {
+                slot = 2 * slot + (((K) keys[slot]).compareTo(key) < 0 ? 1 : 0);
+                steps++;
+            }
+        }
+        searchOpCount.add(steps);
+
+        // Drop the trailing right turns and the last left turn, reaching the lower bound
+        slot >>>= Integer.numberOfTrailingZeros(~slot) + 1;
+        if (slot != 0 && ((K) keys[slot]).compareTo(key) == 0) {
+            return (V) values[slot]; // Key found
+        }
+        return null;
+    }
+
+    /**
+     * Looks up a batch of keys. The searches do not depend on one another, so the processor
+     * overlaps their memory accesses.
+     *
+     * @param keys The keys to search for.
+     * @return The value for each key in the same order as the keys, with null for keys not present.
+     */
+    public List<V> getAll(List<? extends K> keys) {
+        List<V> results = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            results.add(get(key));
+        }
+        return results;
+    }
+}
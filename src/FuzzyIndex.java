@@ -0,0 +1,217 @@
+//HLDZUH001
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class for finding the terms nearest to a misspelled one, by Levenshtein distance: the number
+ * of characters inserted, deleted or replaced to turn one into the other. The terms are kept
+ * sorted, which makes them a trie: neighbouring terms share their common prefix. A search walks
+ * the terms in order, filling in one row of the edit distance table per character. A term
+ * reuses the rows of the prefix it shares with the term before, which the index keeps for every
+ * term. As soon as no row entry for a prefix is within the distance, no term starting with that
+ * prefix can be, and the search skips all of them. This acts as a Levenshtein automaton run
+ * over the sorted keys.
+ *
+ * <p>The index is built once and then only read, so it can be searched from several threads.
+ */
+class FuzzyIndex {
+    private final String[] terms; // Terms in sorted order
+    private final int[] commonPrefix; // Length of the prefix each term shares with the one before
+    private final int rowBudget; // Most table rows one search fills in before returning what it has
+    private final LongAdder searchCount = new LongAdder(); // Searches so far
+    private final LongAdder rowCount = new LongAdder(); // Table rows filled in by those searches
+    private final LongAdder truncatedCount = new LongAdder(); // Searches stopped by the budget
+
+    /**
+     * Class for one term found by a search, with its distance from the query.
+     */
+    static final class Match {
+        final String term;
+        final int distance;
+
+        Match(String term, int distance) {
+            this.term = term;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * Builds an index of a tree's keys as they are now. Takes O(n).
+     *
+     * @param tree      The tree whose keys to index.
+     * @param rowBudget The most table rows, each one character of a term, that one search may
+     *                  fill in, which bounds its latency.
+     */
+    public FuzzyIndex(OrderedIndex<String, ?> tree, int rowBudget) {
+        this(keysOf(tree), rowBudget);
+    }
+
+    /**
+     * Builds an index of sorted terms, such as the terms of a snapshot. Any order in which the
+     * terms sharing a prefix are next to each other will do. Takes O(n).
+     *
+     * @param keys      The terms, sorted.
+     * @param rowBudget The most table rows, each one character of a term, that one search may
+     *                  fill in, which bounds its latency.
+     */
+    public FuzzyIndex(List<String> keys, int rowBudget) {
+        if (rowBudget <= 0) {
+            throw new IllegalArgumentException("Row budget must be positive: " + rowBudget);
+        }
+        terms = keys.toArray(new String[0]);
+        commonPrefix = new int[terms.length];
+        for (int i = 1; i < terms.length; i++) {
+            int length = Math.min(terms[i - 1].length(), terms[i].length());
+            int shared = 0;
+            while (shared < length && terms[i - 1].charAt(shared) == terms[i].charAt(shared)) {
+                shared++;
+            }
+            commonPrefix[i] = shared;
+        }
+        this.rowBudget = rowBudget;
+    }
+
+    private static List<String> keysOf(OrderedIndex<String, ?> tree) {
+        List<String> keys = new ArrayList<>(tree.size());
+        tree.forEach((key, value) -> keys.add(key));
+        return keys;
+    }
+
+    public int size() {
+        return terms.length;
+    }
+
+    /**
+     * Finds the terms nearest a query, nearest first, with ties in term order. If the search
+     * reaches its row budget, it returns the best terms found so far.
+     *
+     * @param query       The term to match.
+     * @param maxDistance The greatest distance a match may be from the query.
+     * @param limit       The most matches to return.
+     * @return The matches, at most limit of them.
+     */
+    public List<Match> nearest(String query, int maxDistance, int limit) {
+        List<Match> matches = new ArrayList<>(limit + 1);
+        if (limit <= 0) {
+            return matches;
+        }
+        int width = query.length() + 1;
+        int[][] rows = new int[16][]; // Row d holds the distances from the first d characters of the current term
+        rows[0] = new int[width];
+        for (int i = 0; i < width; i++) {
+            rows[0][i] = i;
+        }
+        int radius = maxDistance; // Narrows to the worst match kept once there are limit of them
+        int filled = 0; // Rows filled in so far
+        int depth = 0; // Rows of the table that belong to a prefix of the current term
+
+        int index = 0;
+        search:
+        while (index < terms.length) {
+            String term = terms[index];
+            int skipDepth = Integer.MAX_VALUE; // Length of a prefix no later term may start with
+            while (depth < term.length()) {
+                if (filled == rowBudget) {
+                    truncatedCount.increment();
+                    break search;
+                }
+                filled++;
+                depth++;
+                if (depth == rows.length) {
+                    rows = Arrays.copyOf(rows, 2 * depth);
+                }
+                if (rows[depth] == null) {
+                    rows[depth] = new int[width];
+                }
+                if (fillRow(rows[depth - 1], rows[depth], term.charAt(depth - 1), query, depth, radius) > radius) {
+                    skipDepth = depth--; // No term starting with this prefix can be within the radius
+                    break;
+                }
+            }
+            if (skipDepth == Integer.MAX_VALUE) {
+                int distance = rows[depth][width - 1]; // Only filled in if the lengths differ by at most the radius
+                if (Math.abs(depth - query.length()) <= radius && distance <= radius) {
+                    radius = keep(matches, new Match(term, distance), limit, maxDistance);
+                }
+            }
+
+            // Move to the next term outside the skipped prefix, keeping the rows it shares
+            index++;
+            while (index < terms.length && commonPrefix[index] >= skipDepth) {
+                index++;
+            }
+            if (index < terms.length) {
+                depth = Math.min(depth, commonPrefix[index]);
+            }
+        }
+        searchCount.increment();
+        rowCount.add(filled);
+        return matches;
+    }
+
+    /**
+     * Fills in the table row for one more character of a term. Only the entries within the
+     * radius of the diagonal can be within the radius, so only they are filled in, with the
+     * entries either side of them set to radius + 1. The radius never grows during a search,
+     * so the band of each row lies within the band of the row above plus those two entries.
+     *
+     * @param depth The number of characters of the term the row is for.
+     * @return The smallest entry in the row, or radius + 1 if none is within the radius.
+     */
+    private static int fillRow(int[] above, int[] row, char c, String query, int depth, int radius) {
+        int last = row.length - 1;
+        int from = Math.max(1, depth - radius);
+        int to = Math.min(last, depth + radius);
+        int outside = radius + 1;
+        row[0] = depth;
+        int min = depth <= radius ? depth : outside;
+        if (from > 1 && from - 1 <= last) {
+            row[from - 1] = outside;
+        }
+        for (int i = from; i <= to; i++) {
+            int cost = query.charAt(i - 1) == c ? 0 : 1;
+            row[i] = Math.min(Math.min(row[i - 1], above[i]) + 1, above[i - 1] + cost);
+            min = Math.min(min, row[i]);
+        }
+        if (to < last) {
+            row[to + 1] = outside;
+        }
+        return min;
+    }
+
+    /**
+     * Adds a match to the sorted matches, dropping the worst if there are more than limit.
+     *
+     * @return The search radius from now on.
+     */
+    private static int keep(List<Match> matches, Match match, int limit, int maxDistance) {
+        int position = matches.size();
+        while (position > 0 && isBetter(match, matches.get(position - 1))) {
+            position--;
+        }
+        matches.add(position, match);
+        if (matches.size() > limit) {
+            matches.remove(limit);
+        }
+        return matches.size() == limit ? matches.get(limit - 1).distance : maxDistance;
+    }
+
+    private static boolean isBetter(Match a, Match b) {
+        return a.distance != b.distance ? a.distance < b.distance : a.term.compareTo(b.term) < 0;
+    }
+
+    /**
+     * Summarises the searches so far.
+     *
+     * @return A one-line report of searches, table rows per search, and searches cut short.
+     */
+    public String getStats() {
+        long searches = searchCount.sum();
+        return String.format("Fuzzy index: %d terms, %d searches, %.1f rows per search, %d cut short",
+                terms.length, searches, searches == 0 ? 0.0 : (double) rowCount.sum() / searches,
+                truncatedCount.sum());
+    }
+}
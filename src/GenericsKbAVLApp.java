@@ -1,308 +1,535 @@
 //HLDZUH001
 
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import javax.management.JMException;
 
 /**
- * Class representing a node in an AVL tree.
+ * Main class to run the AVL tree application.
  */
-class AVLNode {
-    String data; // Data stored in the node
-    AVLNode left; // Reference to the left child node
-    AVLNode right; // Reference to the right child node
-    int height; // Height of the node in the AVL tree
+public class GenericsKbAVLApp {
+    // Most edit distance table rows one fuzzy search may fill in, bounding its latency
+    private static final int FUZZY_ROW_BUDGET = 1 << 16;
+    // False positive rate of the Bloom filter when none is given, and how many times the terms
+    // loaded at start a followed knowledge base's filter is sized for, since it keeps growing
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+    private static final int BLOOM_FOLLOW_HEADROOM = 2;
+    // Smallest batch of queries worth splitting across threads
+    private static final int PARALLEL_BATCH_THRESHOLD = 1024;
+    // How often a followed knowledge base file is checked for new lines, and how long its log may grow between checkpoints
+    private static final long FOLLOW_POLL_MILLIS = 1000;
+    private static final long FOLLOW_CHECKPOINT_BYTES = 64L << 20;
+    // How often the metrics file is rewritten while serving, and the name the metrics are published under in JMX
+    private static final long METRICS_PERIOD_MILLIS = 10_000;
+    private static final String METRICS_MBEAN_NAME = "GenericsKB:type=Metrics";
+    // Estimated heap bytes of a KBEntry object, not counting its strings
+    private static final long ENTRY_BYTES = 32;
+
+    private static AVLTree<String, KBEntry> avlTree;
+    private static OrderedIndex<String, KBEntry> index; // Tree the knowledge base is loaded into: avlTree, sharded, compact, or another engine chosen with --engine
+    private static ShardedAVLTree<String, KBEntry> sharded; // Shards the knowledge base is loaded into instead, if enabled
+    private static CompactIndex compact; // Compactly encoded tree the knowledge base is loaded into instead, if enabled
+    private static KBSnapshot snapshot; // Memory-mapped snapshot searched instead of the tree, if one was usable
+    private static LookupCache<String, KBEntry> cache; // Cache of recent lookups in front of the tree, if enabled
+    private static EytzingerIndex<String, KBEntry> eytzinger; // Read-optimized copy of the tree searched instead, if enabled
+    private static FuzzyIndex fuzzy; // Index of near terms used to answer misses, if enabled
+    private static int fuzzyDistance; // Greatest edit distance a near term may be from a missed query
+    private static BloomFilter bloom; // Filter of the loaded terms answering definite misses without a search, if enabled
+    private static double bloomFalsePositiveRate; // False positive rate the Bloom filter is sized for
+    private static MetricsRegistry metrics; // Live metrics of the tree and lookups, if enabled
+    private static TreeStatistics treeStatistics; // Statistics the tree reports to, while metrics are enabled
+    private static final Histogram lookupNanos = new Histogram(); // Time per lookup, recorded while metrics are enabled
+    private static final LongAdder lookupHitCount = new LongAdder(); // Queries answered, while metrics are enabled
+    private static final LongAdder lookupMissCount = new LongAdder(); // Queries not answered, while metrics are enabled
+    private static Map<String, String> options; // Settings given on the command line as --name=value
+    private static ResultFormat resultFormat; // Format query results are written in
 
     /**
-     * Constructs an AVLNode with the given data.
+     * Main method to run the AVL tree application.
      *
-     * @param data Data that will be stored in the node.
-     */
-    public AVLNode(String data) {
-        this.data = data;
-        left = right = null;
-        height = 1;
-    }
-}
-
-/**
- * Class representing an AVL tree.
- */
-class AVLTree {
-    AVLNode root; // Root node of the AVL tree
-    private int searchOpCount = 0; // Counter for search operations
-    private int insertOpCount = 0; // Counter for insert operations
-
-    /**
-     * Constructs an empty AVL tree.
+     * @param args Optional settings as --name=value, or --name for one that is switched on. They
+     *             are listed under "Running the Program" in README.md.
      */
-    public AVLTree() {
-        root = null;
-    }
-
-    public int getSearchOpCount() {
-        return searchOpCount;
-    }
+    public static void main(String[] args) {
+        options = parseOptions(args);
+        try {
+            resultFormat = ResultFormat.named(options.getOrDefault("format", "text"));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error - " + e.getMessage());
+            return;
+        }
+        boolean serving = options.containsKey("serve");
+        boolean following = options.containsKey("follow");
+        int port = 0;
+        if (serving) {
+            try {
+                port = Integer.parseInt(options.get("serve"));
+            } catch (NumberFormatException e) {
+                port = -1;
+            }
+            if (port < 0 || port > 0xFFFF) {
+                System.out.println("Error - Invalid port: " + options.get("serve"));
+                return;
+            }
+        }
+        if (following && !serving) {
+            System.out.println("Error - --follow can only be used with --serve");
+            return;
+        }
+        if (following && (options.get("follow").equals("true") || options.containsKey("cache")
+                || options.containsKey("eytzinger") || options.containsKey("snapshot"))) {
+            System.out.println("Error - --follow needs a log file, and cannot be combined with --cache, --eytzinger or --snapshot");
+            return;
+        }
+        if (options.containsKey("eytzinger") && options.containsKey("snapshot")) {
+            System.out.println("Error - --eytzinger cannot be combined with --snapshot");
+            return;
+        }
+        if (options.containsKey("cache") && (options.containsKey("snapshot") || options.containsKey("eytzinger"))) {
+            System.out.println("Error - --cache cannot be combined with --snapshot or --eytzinger");
+            return;
+        }
+        if ("true".equals(options.get("metrics"))) {
+            System.out.println("Error - --metrics needs a file");
+            return;
+        }
+        avlTree = new AVLTree<>(KBEntry.KEEP_HIGHEST_CONFIDENCE, following); // Copy-on-write so searches never wait for new lines
+        index = avlTree;
+        String engine = options.getOrDefault("engine", "avl");
+        if (!engine.equals("avl")) {
+            try {
+                index = OrderedIndex.named(engine, KBEntry.KEEP_HIGHEST_CONFIDENCE);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Error - " + e.getMessage());
+                return;
+            }
+            if (following || options.containsKey("snapshot")) {
+                System.out.println("Error - --engine=" + engine + " cannot be combined with --follow or --snapshot");
+                return;
+            }
+        }
+        if (options.containsKey("shards")) {
+            String shards = options.get("shards");
+            int shardCount;
+            try {
+                shardCount = shards.equals("true") ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(shards);
+            } catch (NumberFormatException e) {
+                shardCount = 0;
+            }
+            if (shardCount <= 0) {
+                System.out.println("Error - Invalid shard count: " + shards);
+                return;
+            }
+            if (!engine.equals("avl") || following || options.containsKey("snapshot")) {
+                System.out.println("Error - --shards cannot be combined with --engine, --follow or --snapshot");
+                return;
+            }
+            // Copy-on-write shards, so lookups never wait for a shard being written
+            sharded = new ShardedAVLTree<>(shardCount, () -> new AVLTree<String, KBEntry>(KBEntry.KEEP_HIGHEST_CONFIDENCE, true));
+            index = sharded;
+        }
+        if (options.containsKey("compact")) {
+            if (!engine.equals("avl") || sharded != null || following || options.containsKey("snapshot")) {
+                System.out.println("Error - --compact cannot be combined with --engine, --shards, --follow or --snapshot");
+                return;
+            }
+            compact = new CompactIndex(true);
+            index = compact;
+        }
+        if (options.containsKey("cache")) {
+            try {
+                cache = new LookupCache<>(index, Integer.parseInt(options.get("cache")));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Error - Invalid cache size: " + options.get("cache"));
+                return;
+            }
+        }
+        if (options.containsKey("fuzzy")) {
+            String distance = options.get("fuzzy");
+            try {
+                fuzzyDistance = distance.equals("true") ? 2 : Integer.parseInt(distance);
+            } catch (NumberFormatException e) {
+                fuzzyDistance = -1;
+            }
+            if (fuzzyDistance < 0) {
+                System.out.println("Error - Invalid fuzzy distance: " + distance);
+                return;
+            }
+        }
+        if (options.containsKey("bloom")) {
+            String rate = options.get("bloom");
+            try {
+                bloomFalsePositiveRate = rate.equals("true") ? BLOOM_FALSE_POSITIVE_RATE : Double.parseDouble(rate);
+            } catch (NumberFormatException e) {
+                bloomFalsePositiveRate = -1;
+            }
+            if (!(bloomFalsePositiveRate > 0 && bloomFalsePositiveRate < 1)) {
+                System.out.println("Error - Invalid false positive rate: " + rate);
+                return;
+            }
+        }
+        if (options.containsKey("metrics") || options.containsKey("jmx")) {
+            setUpMetrics();
+        }
 
-    public int getInsertOpCount() {
-        return insertOpCount;
-    }
+        Scanner keyboard = new Scanner(System.in);
+        System.out.print("Enter the name of the knowledge base file: ");
+        String kbFile = keyboard.nextLine();
 
-    /**
-     * Inserts a new node with the given data into the AVL tree.
-     *
-     * @param data Data to be inserted.
-     */
-    public void insert(String data) {
-        root = insertRec(root, data);
-        if (!isBalanced(root)) {
-            root = balance(root);
+        String queryFile = null;
+        if (!serving) {
+            System.out.print("Enter the name of the query file: ");
+            queryFile = keyboard.nextLine();
         }
-    }
 
-    private AVLNode insertRec(AVLNode node, String data) {
-        if (node == null) {
-            insertOpCount++;
-            return new AVLNode(data);
-        }
-        if (data.compareTo(node.data) < 0) {
-            insertOpCount++;
-            node.left = insertRec(node.left, data);
-        } else if (data.compareTo(node.data) > 0) {
-            insertOpCount++;
-            node.right = insertRec(node.right, data);
+        keyboard.close();
+
+        KBIngester ingester = null;
+        if (following) {
+            ingester = followKB(kbFile);
+            if (ingester == null) {
+                return;
+            }
         } else {
-            return node; // Duplicate data, no insertion needed
+            readKB(kbFile);
+            avlTree.freeze(); // The tree is read-only from here on, so queries can run in parallel
+            if (sharded != null) {
+                sharded.freeze();
+            }
+            if (compact != null) {
+                compact.trim(); // Lookups decode statements without locking from here on
+            }
+            if (options.containsKey("bloom")) {
+                buildBloom(snapshot != null ? snapshot.size() : index.size());
+            }
+        }
+        if (metrics != null) {
+            addIndexMetrics();
+        }
+        if (options.containsKey("eytzinger")) {
+            eytzinger = new EytzingerIndex<>(index, EytzingerIndex::stringPrefix);
+        }
+        if (options.containsKey("fuzzy")) {
+            if (snapshot != null) {
+                List<String> terms = new ArrayList<>(snapshot.size());
+                snapshot.forEach(entry -> terms.add(entry.term));
+                fuzzy = new FuzzyIndex(terms, FUZZY_ROW_BUDGET);
+            } else {
+                fuzzy = new FuzzyIndex(index, FUZZY_ROW_BUDGET);
+            }
         }
 
-        node.height = 1 + Math.max(getHeight(node.left), getHeight(node.right));
+        if (metrics != null && options.containsKey("jmx")) {
+            try {
+                metrics.registerMBean(METRICS_MBEAN_NAME);
+            } catch (JMException e) {
+                System.out.println("Error - Could not publish metrics (" + e.getMessage() + ")");
+            }
+        }
 
-        int balance = getBalanceFactor(node);
+        if (serving) {
+            serve(port, ingester);
+            return;
+        }
 
-        // If node becomes unbalanced after new data is inserted, then there are 4 cases
+        searchQueries(queryFile);
+        dumpMetrics();
 
-        // Left Left Case
-        if (balance > 1 && data.compareTo(node.left.data) < 0) {
-            return rightRotate(node);
+        System.out.println("Total Search Operations: " + (snapshot != null ? snapshot.getSearchOpCount()
+                : eytzinger != null ? eytzinger.getSearchOpCount() : index.getSearchOpCount()));
+        System.out.println("Total Insert Operations: " + index.getInsertOpCount());
+        if (cache != null) {
+            System.out.println(cache.getStats());
         }
-
-        // Right Right Case
-        if (balance < -1 && data.compareTo(node.right.data) > 0) {
-            return leftRotate(node);
+        if (compact != null) {
+            System.out.println(compact.getStore().getStats());
         }
-
-        // Left Right Case
-        if (balance > 1 && data.compareTo(node.left.data) > 0) {
-            node.left = leftRotate(node.left);
-            return rightRotate(node);
+        if (fuzzy != null) {
+            System.out.println(fuzzy.getStats());
         }
-
-        // Right Left Case
-        if (balance < -1 && data.compareTo(node.right.data) < 0) {
-            node.right = rightRotate(node.right);
-            return leftRotate(node);
+        if (bloom != null) {
+            System.out.println(bloom.getStats());
         }
-
-        return node;
     }
 
     /**
-     * Searches for a term in the AVL tree.
-     *
-     * @param searchTerm The term to search for.
-     * @return true if the term is found, false otherwise.
+     * Instruments the tree and registers the hits, misses and time of each lookup. The metrics
+     * of whatever answers the lookups are registered once it is loaded.
      */
-    public boolean search(String searchTerm) {
-        return searchRec(root, searchTerm);
+    private static void setUpMetrics() {
+        treeStatistics = new TreeStatistics();
+        index.setInstrumentation(treeStatistics);
+        metrics = new MetricsRegistry();
+        metrics.gauge("lookup.hits", lookupHitCount::sum);
+        metrics.gauge("lookup.misses", lookupMissCount::sum);
+        metrics.histogram("lookup.nanos", () -> {
+            Histogram copy = new Histogram();
+            synchronized (lookupNanos) {
+                copy.add(lookupNanos);
+            }
+            return copy;
+        });
+        if (cache != null) {
+            metrics.gauge("cache.hits", cache::getHitCount);
+            metrics.gauge("cache.negativeHits", cache::getNegativeHitCount);
+            metrics.gauge("cache.misses", cache::getMissCount);
+            metrics.gauge("cache.evictions", cache::getEvictionCount);
+        }
     }
 
-    private boolean searchRec(AVLNode node, String searchTerm) {
-        if (node == null) {
-            return false; // Base case: node not found
+    /**
+     * Registers the metrics of what the knowledge base was loaded into. For the tree, of any
+     * engine, these are its shape, size, operation counts, latency and depth histograms, and
+     * rotations, with a heap estimate for the AVL tree. For an opened snapshot, which leaves the
+     * tree empty, they are its size, height and search count.
+     */
+    private static void addIndexMetrics() {
+        if (snapshot != null) {
+            metrics.snapshot("snapshot", snapshot);
+            return;
         }
-
-        // Extract components from the node data
-        String[] parts = node.data.split("\t");
-        String term = parts[0];
-        String statement = parts[1];
-        String score = parts[2];
-
-        int comparisonResult = searchTerm.compareTo(term);
-        if (comparisonResult == 0) {
-            searchOpCount++;
-            System.out.println(term + ": " + statement + " (" + score + ")");
-            return true; // Term found
-        } else if (comparisonResult < 0) {
-            searchOpCount++;
-            return searchRec(node.left, searchTerm); // Search left subtree
+        if (index == avlTree) {
+            metrics.tree("tree", avlTree, entry -> ENTRY_BYTES + MetricsRegistry.stringBytes(entry.getKey())
+                    + MetricsRegistry.stringBytes(entry.getValue().statement)); // The entry shares its term with the key
         } else {
-            searchOpCount++;
-            return searchRec(node.right, searchTerm); // Search right subtree
+            metrics.tree("tree", index);
         }
+        metrics.statistics("tree", treeStatistics);
     }
 
     /**
-     * Calculates the height of a node.
+     * Builds the Bloom filter over every loaded term, read from the snapshot if one was opened
+     * and from the tree otherwise, and registers its metrics.
      *
-     * @param node The node to calculate the height for.
-     * @return The height of the node.
+     * @param capacity The number of terms to size the filter for.
      */
-    private int getHeight(AVLNode node) {
-        if (node == null) {
-            return 0;
+    private static void buildBloom(long capacity) {
+        bloom = new BloomFilter(capacity, bloomFalsePositiveRate);
+        if (snapshot != null) {
+            snapshot.forEach(entry -> bloom.add(entry.term));
+        } else {
+            index.forEach((term, entry) -> bloom.add(term));
+        }
+        if (metrics != null) {
+            metrics.gauge("bloom.checks", bloom::getCheckCount);
+            metrics.gauge("bloom.definiteMisses", bloom::getRejectCount);
+            metrics.gauge("bloom.falsePositivePercent", () -> 100 * bloom.getFalsePositiveRate()); // Written to one decimal place, so as a percentage
         }
-        return node.height;
     }
 
     /**
-     * Calculates the balance factor of a node.
-     *
-     * @param node The node to calculate the balance factor for.
-     * @return The balance factor of the node.
+     * Writes the metrics to the file named by the --metrics setting, if there is one.
      */
-    private int getBalanceFactor(AVLNode node) {
-        if (node == null) {
-            return 0;
+    private static void dumpMetrics() {
+        if (metrics == null || !options.containsKey("metrics")) {
+            return;
+        }
+        try {
+            metrics.dump(Path.of(options.get("metrics")));
+        } catch (IOException e) {
+            System.out.println("Error - Could not write metrics to " + options.get("metrics") + " (" + e.getMessage() + ")");
         }
-        return getHeight(node.left) - getHeight(node.right);
     }
 
     /**
-     *  Right rotates a node on the AVL tree.
+     * Parses command line settings of the form --name=value, or --name for a setting that is switched on.
      *
-     * @param y The node to perform the rotation on.
-     * @return The new root node after rotation.
+     * @param args The command line arguments.
+     * @return The settings by name.
      */
-    private AVLNode rightRotate(AVLNode y) {
-        AVLNode x = y.left;
-        AVLNode swapVariable = x.right;
-
-        // Perform rotation
-        x.right = y;
-        y.left = swapVariable;
-
-        // Update heights
-        y.height = Math.max(getHeight(y.left), getHeight(y.right)) + 1;
-        x.height = Math.max(getHeight(x.left), getHeight(x.right)) + 1;
-
-        // Return new root
-        return x;
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> parsed = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                System.out.println("Ignoring unrecognised argument: " + arg);
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                parsed.put(arg.substring(2), "true");
+            } else {
+                parsed.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+        return parsed;
     }
 
     /**
-     *  Left-rotates a node on the AVL tree.
+     * Opens the sink query results are written to, as chosen by the --output and --async settings.
      *
-     * @param x The node to perform the rotation on.
-     * @return The new root node after rotation.
+     * @return The sink.
+     * @throws IOException If the output file cannot be created.
      */
-    private AVLNode leftRotate(AVLNode x) {
-        AVLNode y = x.right;
-        AVLNode swapVariable = y.left;
-
-        // Perform rotation
-        y.left = x;
-        x.right = swapVariable;
-
-        // Update heights
-        x.height = Math.max(getHeight(x.left), getHeight(x.right)) + 1;
-        y.height = Math.max(getHeight(y.left), getHeight(y.right)) + 1;
-
-        // Return new root
-        return y;
-    }
-
-    private boolean isBalanced(AVLNode node) {
-        int balanceFactor = getBalanceFactor(node);
-        return balanceFactor >= -1 && balanceFactor <= 1;
+    private static ResultSink openSink() throws IOException {
+        String output = options.getOrDefault("output", "stdout");
+        if (output.equals("none")) {
+            return ResultSink.NONE;
+        }
+        ResultSink sink = output.equals("stdout") ? ResultSink.toStdout(resultFormat) : ResultSink.toFile(output, resultFormat);
+        return options.containsKey("async") ? ResultSink.async(sink) : sink;
     }
 
-    private AVLNode balance(AVLNode node) {
-        if (node == null) {
-            return null;
+    /**
+     * Reads and inserts the knowledge base from the specified file into the tree the --engine
+     * setting chose, an AVL tree by default, into the shards --shards asked for, which are built
+     * in parallel, or into the CompactIndex --compact asked for. With a --snapshot setting, an
+     * up-to-date snapshot of the file is opened instead, and otherwise one is written after loading.
+     * 
+     * @param fileName The name of the file containing the knowledge base.
+     */
+    private static void readKB(String fileName) {
+        String snapshotFile = options.get("snapshot");
+        if (snapshotFile != null && openSnapshot(Path.of(snapshotFile), Path.of(fileName))) {
+            System.out.println("\nKnowledge base loaded successfully.\n");
+            System.out.println("Opened snapshot " + snapshotFile + " (" + snapshot.size() + " terms).\n");
+            return;
         }
-
-        int balanceFactor = getBalanceFactor(node);
-
-        // Left subtree is heavier
-        if (balanceFactor > 1) {
-            // Left-Left case
-            if (getHeight(node.left.left) >= getHeight(node.left.right)) {
-                return rightRotate(node);
+        try {
+            KBLoader loader = new KBLoader();
+            index.putAll(loader.load(fileName), entry -> entry.term);
+            System.out.println("\nKnowledge base loaded successfully.\n");
+            if (loader.getMalformedLineCount() > 0) {
+                System.out.println("Skipped " + loader.getMalformedLineCount() + " malformed line(s) of "
+                        + loader.getLineCount() + ".\n");
             }
-            // Left-Right case
-            else {
-                node.left = leftRotate(node.left);
-                return rightRotate(node);
+            if (snapshotFile != null) {
+                KBSnapshot.write(avlTree, Path.of(snapshotFile), Path.of(fileName));
+                System.out.println("Wrote snapshot " + snapshotFile + ".\n");
             }
+        } catch (NoSuchFileException e) {
+            System.out.println("\nError - File not found: " + fileName + "\n");
+        } catch (IOException e) {
+            System.out.println("\nError - Could not read file: " + fileName + " (" + e.getMessage() + ")\n");
         }
-        // Right subtree is heavier
-        else if (balanceFactor < -1) {
-            // Right-Right case
-            if (getHeight(node.right.right) >= getHeight(node.right.left)) {
-                return leftRotate(node);
+    }
+
+    /**
+     * Opens a snapshot if it exists and was built from the current knowledge base file.
+     *
+     * @param file   The snapshot file.
+     * @param source The knowledge base file.
+     * @return Whether the snapshot was opened.
+     */
+    private static boolean openSnapshot(Path file, Path source) {
+        try {
+            KBSnapshot opened = KBSnapshot.open(file);
+            if (!opened.isSnapshotOf(source)) {
+                System.out.println("\nSnapshot " + file + " is out of date, rebuilding it.");
+                return false;
             }
-            // Right-Left case
-            else {
-                node.right = rightRotate(node.right);
-                return leftRotate(node);
+            if (options.containsKey("verify-snapshot")) {
+                opened.verify();
             }
+            snapshot = opened;
+            return true;
+        } catch (NoSuchFileException e) {
+            return false; // No snapshot yet, or no knowledge base file to compare it with
+        } catch (IOException e) {
+            System.out.println("\nError - Could not use snapshot " + file + " (" + e.getMessage() + "), rebuilding it.");
+            return false;
         }
-        return node;
     }
-}
-
-/**
- * Main class to run the AVL tree application.
- */
-public class GenericsKbAVLApp {
-    private static AVLTree avlTree;
 
     /**
-     * Main method to run the AVL tree application.
+     * Loads the knowledge base through a KBIngester, which goes on loading lines appended to the
+     * file on a background thread. Loading resumes from the log named by the --follow setting,
+     * checkpointing to the log's name with .snapshot added.
      *
-     * @param args The command line arguments.
+     * @param fileName The name of the file containing the knowledge base.
+     * @return The running ingester, or null if loading failed.
      */
-    public static void main(String[] args) {
-        avlTree = new AVLTree();
-
-        Scanner keyboard = new Scanner(System.in);
-        System.out.print("Enter the name of the knowledge base file: ");
-        String kbFile = keyboard.nextLine();
-
-        System.out.print("Enter the name of the query file: ");
-        String queryFile = keyboard.nextLine();
-
-        keyboard.close();
-
-        readKB(kbFile);
-
-        searchQueries(queryFile);
-
-        System.out.println("Total Search Operations: " + avlTree.getSearchOpCount());
-        System.out.println("Total Insert Operations: " + avlTree.getInsertOpCount());
+    private static KBIngester followKB(String fileName) {
+        String log = options.get("follow");
+        KBIngester ingester = new KBIngester(avlTree, Path.of(fileName), Path.of(log), Path.of(log + ".snapshot"),
+                FOLLOW_CHECKPOINT_BYTES);
+        try {
+            long restored = ingester.recover();
+            while (ingester.ingestOnce()) {
+                // Catch up with the file before serving
+            }
+            if (options.containsKey("bloom")) {
+                // Every later batch is added to the filter before the tree, so no search misses it
+                buildBloom(BLOOM_FOLLOW_HEADROOM * Math.max(1L, avlTree.size()));
+                ingester.setListener(entries -> entries.forEach(entry -> bloom.add(entry.term)));
+            }
+            ingester.start(FOLLOW_POLL_MILLIS);
+            if (metrics != null) {
+                metrics.gauge("ingest.offset", ingester::getOffset);
+                metrics.gauge("ingest.appliedLines", ingester::getAppliedLineCount);
+                metrics.gauge("ingest.malformedLines", ingester::getMalformedLineCount);
+            }
+            System.out.println("\nKnowledge base loaded successfully.\n");
+            System.out.println("Following " + fileName + " (" + restored + " entries restored from " + log + ", "
+                    + avlTree.size() + " terms).\n");
+            return ingester;
+        } catch (IOException e) {
+            System.out.println(e instanceof NoSuchFileException ? "\nError - File not found: " + fileName + "\n"
+                    : "\nError - Could not follow file: " + fileName + " (" + e.getMessage() + ")\n");
+            try {
+                ingester.close();
+            } catch (IOException closeFailure) {
+                // The log is left as it was, and recovers on the next start
+            }
+            return null;
+        }
     }
 
     /**
-     * Reads and inserts the knowledge base from the specified file into an AVL Tree.
-     * 
-     * @param fileName The name of the file containing the knowledge base.
+     * Answers lookups over TCP on localhost until the process is stopped, then prints the
+     * server's counts. See KBServer for the protocol.
+     *
+     * @param port     The port to listen on, or 0 for any free port.
+     * @param ingester The ingester following the knowledge base file, or null.
      */
-    private static void readKB(String fileName) {
+    private static void serve(int port, KBIngester ingester) {
+        KBServer server;
         try {
-            Scanner file = new Scanner(new File(fileName));
-            while (file.hasNextLine()) {
-                String line = file.nextLine();
-
-                String[] parts = line.split("\t");
-                if (parts.length == 3) {
-                    avlTree.insert(line);
-                }
+            server = new KBServer(GenericsKbAVLApp::lookUp, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        } catch (IOException e) {
+            System.out.println("Error - Could not listen on port " + port + " (" + e.getMessage() + ")");
+            return;
+        }
+        if (metrics != null) {
+            metrics.gauge("server.connections", server::getConnectionCount);
+            metrics.gauge("server.requests", server::getRequestCount);
+            metrics.gauge("server.terms", server::getTermCount);
+            if (options.containsKey("metrics")) {
+                metrics.startDumping(Path.of(options.get("metrics")), METRICS_PERIOD_MILLIS);
             }
-            System.out.println("\nKnowledge base loaded successfully.\n");
-            file.close();
-        } catch (FileNotFoundException e) {
-            System.out.println("\nError - File not found: " + fileName + "\n");
         }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                if (ingester != null) {
+                    ingester.close();
+                }
+            } catch (IOException e) {
+                // The process is exiting anyway
+            }
+            if (metrics != null) {
+                metrics.close();
+                dumpMetrics();
+            }
+            System.out.println(server.getStats());
+            if (bloom != null) {
+                System.out.println(bloom.getStats());
+            }
+        }));
+        server.start();
+        System.out.println("Serving " + (snapshot != null ? snapshot.size() : index.size()) + " terms on port "
+                + server.getPort() + ".");
     }
 
     /**
@@ -311,19 +538,181 @@ public class GenericsKbAVLApp {
      * @param fileName The name of the file containing the queries.
      */
     private static void searchQueries(String fileName) {
+        List<String> searchTerms;
         try {
-            Scanner file = new Scanner(new File(fileName));
-            while (file.hasNextLine()) {
-                String searchTerm = file.nextLine().trim();
-                boolean found = avlTree.search(searchTerm);
-                if (!found) {
-                    System.out.println("Term not found: \"" + searchTerm +"\"");
-                }
-                System.out.println();
-            }
-            file.close();
-        } catch (FileNotFoundException e) {
+            searchTerms = new KBLoader().readLines(fileName);
+        } catch (NoSuchFileException e) {
             System.out.println("\nError - File not found: " + fileName + "\n");
+            return;
+        } catch (IOException e) {
+            System.out.println("\nError - Could not read file: " + fileName + " (" + e.getMessage() + ")\n");
+            return;
+        }
+
+        List<KBEntry> results = lookUp(searchTerms);
+        try (ResultSink sink = openSink()) {
+            for (int i = 0; i < results.size(); i++) {
+                sink.accept(searchTerms.get(i), results.get(i));
+            }
+        } catch (NoSuchFileException e) {
+            System.out.println("\nError - Could not create output file: " + e.getFile() + "\n");
+        } catch (IOException e) {
+            System.out.println("\nError - Could not write results (" + e.getMessage() + ")\n");
+        }
+    }
+
+    /**
+     * Looks up a batch of queries, skipping those the Bloom filter rules out if that is enabled,
+     * and answers misses with near terms if that is enabled. While metrics are enabled the
+     * queries are looked up one at a time instead, so each one can be timed.
+     *
+     * @param searchTerms The queries.
+     * @return The entry found for each query, or null, in the same order as the queries.
+     */
+    private static List<KBEntry> lookUp(List<String> searchTerms) {
+        if (metrics != null) {
+            return lookUpTimed(searchTerms);
+        }
+        List<KBEntry> results = bloom != null ? searchFiltered(searchTerms) : search(searchTerms);
+        if (fuzzy != null) {
+            results = answerMisses(searchTerms, results);
+        }
+        return results;
+    }
+
+    /**
+     * Looks up queries one at a time, as lookUp does, recording the time of each and counting
+     * hits and misses.
+     *
+     * @param searchTerms The queries.
+     * @return The entry found for each query, or null, in the same order as the queries.
+     */
+    private static List<KBEntry> lookUpTimed(List<String> searchTerms) {
+        List<KBEntry> results = new ArrayList<>(searchTerms.size());
+        Histogram nanos = new Histogram(); // Recorded without a lock, then added to the shared histogram once
+        long hits = 0;
+        for (String term : searchTerms) {
+            long start = System.nanoTime();
+            KBEntry entry = bloom != null && !bloom.mightContain(term) ? null : get(term);
+            if (entry == null && fuzzy != null) {
+                entry = nearest(term);
+            }
+            nanos.record(System.nanoTime() - start);
+            results.add(entry);
+            if (entry != null) {
+                hits++;
+            }
+        }
+        lookupHitCount.add(hits);
+        lookupMissCount.add(searchTerms.size() - hits);
+        synchronized (lookupNanos) {
+            lookupNanos.add(nanos);
+        }
+        return results;
+    }
+
+    /**
+     * Looks up one query in the snapshot, index, cache or tree the settings chose.
+     *
+     * @param term The query.
+     * @return The entry found, or null.
+     */
+    private static KBEntry get(String term) {
+        if (snapshot != null) {
+            return snapshot.get(term);
+        } else if (eytzinger != null) {
+            return eytzinger.get(term);
+        } else if (cache != null) {
+            return cache.get(term);
+        }
+        return index.get(term);
+    }
+
+    /**
+     * Looks up only the queries the Bloom filter may hold, answering the rest as misses without
+     * searching.
+     *
+     * @param searchTerms The queries.
+     * @return The entry found for each query, or null, in the same order as the queries.
+     */
+    private static List<KBEntry> searchFiltered(List<String> searchTerms) {
+        List<String> candidates = new ArrayList<>(searchTerms.size());
+        int[] positions = new int[searchTerms.size()];
+        for (int i = 0; i < positions.length; i++) {
+            if (bloom.mightContain(searchTerms.get(i))) {
+                positions[candidates.size()] = i;
+                candidates.add(searchTerms.get(i));
+            }
+        }
+        if (candidates.size() == searchTerms.size()) {
+            return search(searchTerms);
+        }
+        KBEntry[] results = new KBEntry[searchTerms.size()];
+        List<KBEntry> found = candidates.isEmpty() ? List.of() : search(candidates);
+        for (int j = 0; j < found.size(); j++) {
+            results[positions[j]] = found.get(j);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Looks up a batch of queries in the snapshot, index, cache or tree the settings chose.
+     * Large batches on the AVL tree are split across threads.
+     *
+     * @param searchTerms The queries.
+     * @return The entry found for each query, or null, in the same order as the queries.
+     */
+    private static List<KBEntry> search(List<String> searchTerms) {
+        List<KBEntry> results;
+        if (snapshot != null) {
+            results = snapshot.getAll(searchTerms);
+        } else if (eytzinger != null) {
+            results = eytzinger.getAll(searchTerms);
+        } else if (cache != null) {
+            results = cache.getAll(searchTerms);
+        } else if (sharded != null) {
+            results = searchTerms.size() < PARALLEL_BATCH_THRESHOLD ? sharded.getAll(searchTerms)
+                    : sharded.getAllParallel(searchTerms, ForkJoinPool.commonPool());
+        } else if (index != avlTree) {
+            results = index.getAll(searchTerms); // Other engines are searched one key at a time, on this thread
+        } else if (searchTerms.size() < PARALLEL_BATCH_THRESHOLD) {
+            results = avlTree.getAll(searchTerms);
+        } else {
+            results = avlTree.getAllParallel(searchTerms, ForkJoinPool.commonPool());
+        }
+        return results;
+    }
+
+    /**
+     * Answers each query that was not found with the entry of the nearest term within the
+     * fuzzy distance, if there is one. The misses are searched for in parallel.
+     *
+     * @param searchTerms The queries.
+     * @param results     The entry found for each query, or null.
+     * @return The results with misses answered where possible.
+     */
+    private static List<KBEntry> answerMisses(List<String> searchTerms, List<KBEntry> results) {
+        KBEntry[] answered = results.toArray(new KBEntry[0]);
+        // Tasks write disjoint slots of the array, and join() makes their writes visible here
+        ForkJoinPool.commonPool().submit(() -> IntStream.range(0, answered.length).parallel()
+                .filter(i -> answered[i] == null)
+                .forEach(i -> answered[i] = nearest(searchTerms.get(i))))
+                .join();
+        return Arrays.asList(answered);
+    }
+
+    /**
+     * Finds the entry of the nearest term within the fuzzy distance of a query that was not found.
+     *
+     * @param query The query.
+     * @return The entry, or null if no term is near enough.
+     */
+    private static KBEntry nearest(String query) {
+        List<FuzzyIndex.Match> nearest = fuzzy.nearest(query, fuzzyDistance, 1);
+        if (nearest.isEmpty()) {
+            return null;
         }
+        String term = nearest.get(0).term;
+        return snapshot != null ? snapshot.get(term) : index.get(term);
     }
 }
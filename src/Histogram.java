@@ -0,0 +1,114 @@
+//HLDZUH001
+
+import java.util.Arrays;
+
+/**
+ * Class for recording the distribution of non-negative long values, such as latencies in
+ * nanoseconds. Values are counted in log-linear buckets, 64 per power of two, so percentiles
+ * are accurate to within about 1.6% of the value while recording stays a constant-time array
+ * increment. Not thread-safe: record on one thread per histogram and combine them with add().
+ */
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 6; // log2 of the number of buckets per power of two
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS];
+    private long count = 0; // Number of values recorded
+    private long sum = 0; // Sum of the values recorded
+    private long min = Long.MAX_VALUE; // Smallest value recorded
+    private long max = 0; // Largest value recorded
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value The value to record.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds every value recorded by another histogram to this one.
+     *
+     * @param other The histogram to add.
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Calculates the value below which a given percentage of the recorded values fall.
+     *
+     * @param percentile The percentage, from 0 to 100.
+     * @return The highest value in the bucket holding that percentile, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestValueAt(i));
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long lowest = (long) ((index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,230 @@
+//HLDZUH001
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class for a client of a KBServer. Requests can be pipelined: send() any number of batches and
+ * then receive() their results, which come back in the order the batches were sent. Not safe for
+ * use from several threads at once.
+ */
+class KBClient implements Closeable {
+    private final SocketChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(4); // Length of the next response
+    private int pending = 0; // Batches sent whose results have not been received
+
+    /**
+     * Constructs a KBClient connected to a server.
+     *
+     * @param address The server's address.
+     * @throws IOException If the server cannot be reached.
+     */
+    public KBClient(InetSocketAddress address) throws IOException {
+        channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    public int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * Sends a batch of terms to look up without waiting for the results.
+     *
+     * @param terms The terms, each at most 65,535 bytes in UTF-8.
+     * @throws IOException If the request cannot be sent.
+     */
+    public void send(List<String> terms) throws IOException {
+        byte[][] encoded = new byte[terms.size()][];
+        int length = 1 + 4;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = terms.get(i).getBytes(StandardCharsets.UTF_8);
+            if (encoded[i].length > 0xFFFF) {
+                throw new IllegalArgumentException("Term too long to send: " + encoded[i].length + " bytes");
+            }
+            length += 2 + encoded[i].length;
+        }
+        if (length > KBServer.MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("Batch too large to send: " + length + " bytes");
+        }
+        ByteBuffer request = ByteBuffer.allocate(4 + length);
+        request.putInt(length).put(KBServer.OP_GET).putInt(encoded.length);
+        for (byte[] term : encoded) {
+            request.putShort((short) term.length).put(term);
+        }
+        request.flip();
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+        pending++;
+    }
+
+    /**
+     * Waits for the results of the oldest batch sent and not yet received.
+     *
+     * @param terms The terms of that batch, which entries for the same term share.
+     * @return The entry found for each term, or null, in the same order as the terms.
+     * @throws IOException If the connection fails, or the server rejects the request.
+     */
+    public List<KBEntry> receive(List<String> terms) throws IOException {
+        if (pending == 0) {
+            throw new IllegalStateException("No request is waiting for its results");
+        }
+        header.clear();
+        readFully(header);
+        int length = header.getInt(0);
+        if (length < 1 || length > KBServer.MAX_FRAME_BYTES) {
+            throw new IOException("Bad response length: " + length);
+        }
+        ByteBuffer response = ByteBuffer.allocate(length);
+        readFully(response);
+        response.flip();
+        pending--;
+
+        if (response.get() != KBServer.STATUS_OK) {
+            pending = 0; // The server closes the connection after an error
+            throw new IOException("Server error: " + readString(response, Short.toUnsignedInt(response.getShort())));
+        }
+        int count = response.getInt();
+        if (count != terms.size()) {
+            throw new IOException("Expected " + terms.size() + " results but got " + count);
+        }
+        List<KBEntry> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte found = response.get();
+            if (found == KBServer.NOT_FOUND) {
+                results.add(null);
+                continue;
+            }
+            String term = found == KBServer.FOUND_OTHER
+                    ? readString(response, Short.toUnsignedInt(response.getShort())) : terms.get(i);
+            String statement = readString(response, response.getInt());
+            results.add(new KBEntry(term, statement, response.getDouble()));
+        }
+        return results;
+    }
+
+    /**
+     * Looks up a batch of terms and waits for the results.
+     *
+     * @param terms The terms.
+     * @return The entry found for each term, or null, in the same order as the terms.
+     * @throws IOException If the connection fails, or the server rejects the request.
+     */
+    public List<KBEntry> getAll(List<String> terms) throws IOException {
+        send(terms);
+        return receive(terms);
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("The server closed the connection");
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        String string = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static List<String> batchOf(List<String> terms, int batch, int batchSize) {
+        return terms.subList(batch * batchSize, Math.min(terms.size(), (batch + 1) * batchSize));
+    }
+
+    /**
+     * Looks up the terms read from standard input, one per line, on a running server and writes
+     * the results as the application does. The terms are sent in batches, with several batches
+     * in flight at once.
+     *
+     * @param args Settings: --port=N (the server's port), --host=NAME (default localhost),
+     *             --batch=N (terms per request, default 100), --depth=N (requests in flight,
+     *             default 8) and --format=text|tsv (default text).
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (arg.startsWith("--") && equals > 2) {
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            } else {
+                System.out.println("Ignoring unrecognised argument: " + arg);
+            }
+        }
+        int port;
+        int batchSize;
+        int depth;
+        ResultFormat format;
+        try {
+            port = Integer.parseInt(options.getOrDefault("port", ""));
+            batchSize = Integer.parseInt(options.getOrDefault("batch", "100"));
+            depth = Integer.parseInt(options.getOrDefault("depth", "8"));
+            format = ResultFormat.named(options.getOrDefault("format", "text"));
+            if (batchSize <= 0 || depth <= 0) {
+                throw new IllegalArgumentException("Batch size and depth must be positive");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error - Usage: java KBClient --port=N [--host=NAME] [--batch=N] [--depth=N] [--format=text|tsv]");
+            return;
+        }
+
+        List<String> terms = new ArrayList<>();
+        try {
+            for (String line : new String(System.in.readAllBytes(), StandardCharsets.UTF_8).split("\\R")) {
+                if (!line.isEmpty()) {
+                    terms.add(line);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error - Could not read terms (" + e.getMessage() + ")");
+            return;
+        }
+
+        String host = options.getOrDefault("host", "localhost");
+        int requests = (terms.size() + batchSize - 1) / batchSize;
+        long totalRoundTrip = 0;
+        long start = System.nanoTime();
+        try (KBClient client = new KBClient(new InetSocketAddress(host, port));
+             ResultSink sink = ResultSink.toStdout(format)) {
+            long[] sentAt = new long[requests];
+            int sent = 0;
+            int received = 0;
+            while (received < requests) {
+                if (sent < requests && client.getPendingCount() < depth) {
+                    sentAt[sent] = System.nanoTime();
+                    client.send(batchOf(terms, sent++, batchSize));
+                    continue;
+                }
+                List<String> batch = batchOf(terms, received, batchSize);
+                List<KBEntry> results = client.receive(batch);
+                totalRoundTrip += System.nanoTime() - sentAt[received++];
+                for (int i = 0; i < batch.size(); i++) {
+                    sink.accept(batch.get(i), results.get(i));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error - " + e.getMessage() + " (" + host + ":" + port + ")");
+            return;
+        }
+        System.out.println(String.format("%d terms in %d requests, %.3f ms per round trip, %.1f ms in all",
+                terms.size(), requests, requests == 0 ? 0.0 : totalRoundTrip / 1e6 / requests,
+                (System.nanoTime() - start) / 1e6));
+    }
+}
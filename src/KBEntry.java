@@ -0,0 +1,62 @@
+//HLDZUH001
+
+import java.util.Comparator;
+import java.util.function.BinaryOperator;
+
+/**
+ * Class representing a single knowledge base record.
+ */
+class KBEntry {
+    // Merge policies deciding which entry to keep when a term is inserted again
+    static final BinaryOperator<KBEntry> KEEP_FIRST = (existing, incoming) -> existing;
+    static final BinaryOperator<KBEntry> KEEP_LATEST = (existing, incoming) -> incoming;
+    static final BinaryOperator<KBEntry> KEEP_HIGHEST_CONFIDENCE =
+            (existing, incoming) -> incoming.confidence > existing.confidence ? incoming : existing;
+
+    // Orders entries by term, the key the AVL tree is built on
+    static final Comparator<KBEntry> BY_TERM = (a, b) -> a.term.compareTo(b.term);
+    // Orders entries by confidence, for ranking the statements found for a set of terms
+    static final Comparator<KBEntry> BY_CONFIDENCE = (a, b) -> Double.compare(a.confidence, b.confidence);
+
+    final String term; // Term the record describes
+    final String statement; // Statement about the term
+    final double confidence; // Confidence score of the statement
+
+    /**
+     * Constructs a KBEntry with the given term, statement and confidence score.
+     *
+     * @param term       The term the record describes.
+     * @param statement  The statement about the term.
+     * @param confidence The confidence score of the statement.
+     */
+    public KBEntry(String term, String statement, double confidence) {
+        this.term = term;
+        this.statement = statement;
+        this.confidence = confidence;
+    }
+
+    /**
+     * Parses a knowledge base line in the format term\tstatement\tconfidence.
+     *
+     * @param line The line to parse.
+     * @return The parsed entry, or null if the line is malformed.
+     */
+    public static KBEntry parse(String line) {
+        int firstTab = line.indexOf('\t');
+        if (firstTab < 0) {
+            return null;
+        }
+        int secondTab = line.indexOf('\t', firstTab + 1);
+        if (secondTab < 0 || line.indexOf('\t', secondTab + 1) >= 0) {
+            return null;
+        }
+
+        double confidence;
+        try {
+            confidence = Double.parseDouble(line.substring(secondTab + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new KBEntry(line.substring(0, firstTab), line.substring(firstTab + 1, secondTab), confidence);
+    }
+}
@@ -0,0 +1,408 @@
+//HLDZUH001
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Class for ingesting an append-only knowledge base file into a live tree while it is being
+ * searched. A background thread polls the file for new complete lines, parses them in batches,
+ * records each batch in a write-ahead log and then applies it to the tree. The tree must be in
+ * copy-on-write mode, so searches never wait for ingestion.
+ *
+ * <p>A checkpoint writes a KBSnapshot of the tree and starts a new, empty log, so after a crash
+ * recover() loads the snapshot and replays only the batches logged since. Replaying a batch the
+ * snapshot already holds is harmless, since batches are applied in file order under the tree's
+ * merge policy either way.
+ *
+ * <p>Log format: a 16-byte header (magic "GKBW", version, and the offset in the knowledge base
+ * file the checkpoint covers), then one record per batch: payload length, CRC32C of the
+ * payload, the file offset just after the batch, and the batch's lines as UTF-8.
+ */
+class KBIngester implements Closeable {
+    private static final int MAGIC = 0x474B4257; // "GKBW"
+    private static final int VERSION = 1; // Log format version
+    private static final int HEADER_BYTES = 16;
+    private static final int RECORD_HEADER_BYTES = 16;
+    private static final int READ_SIZE = 1 << 20; // Bytes of new lines read and logged per batch
+
+    private final AVLTree<String, KBEntry> tree; // Live tree the batches are applied to
+    private final Path source; // Append-only knowledge base file
+    private final Path log; // Write-ahead log
+    private final Path snapshotFile; // Checkpoint snapshot, or null to never checkpoint
+    private final long checkpointBytes; // Log size that triggers a checkpoint
+    private FileChannel logChannel; // Open log, appended to by the ingestion thread
+    private long offset = 0; // Offset in the source just after the last applied line
+    private Thread ingestionThread; // Background thread polling the source
+    private volatile boolean running = false;
+    private volatile IOException failure; // Error that stopped the ingestion thread
+    private volatile long appliedLineCount = 0; // Entries applied since construction, including replays
+    private volatile long malformedLineCount = 0; // Lines skipped since construction
+    private volatile long lastAppliedMillis = 0; // When a batch was last applied
+    private volatile Consumer<? super List<KBEntry>> listener; // Told about each batch before it is applied, if set
+
+    /**
+     * Constructs a KBIngester.
+     *
+     * @param tree            The live tree, which must be in copy-on-write mode.
+     * @param source          The append-only knowledge base file to follow.
+     * @param log             The write-ahead log file.
+     * @param snapshotFile    The checkpoint snapshot file, or null to never checkpoint.
+     * @param checkpointBytes Size the log may reach before a checkpoint is taken.
+     */
+    public KBIngester(AVLTree<String, KBEntry> tree, Path source, Path log, Path snapshotFile, long checkpointBytes) {
+        if (!tree.isCopyOnWrite()) {
+            throw new IllegalArgumentException("Ingestion needs a copy-on-write AVL tree, so searches never wait for it");
+        }
+        this.tree = tree;
+        this.source = source;
+        this.log = log;
+        this.snapshotFile = snapshotFile;
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getAppliedLineCount() {
+        return appliedLineCount;
+    }
+
+    public long getMalformedLineCount() {
+        return malformedLineCount;
+    }
+
+    public long getLastAppliedMillis() {
+        return lastAppliedMillis;
+    }
+
+    /**
+     * Sets a hook told about each batch of entries just before the batch is applied to the
+     * tree, so anything kept alongside the tree, such as a filter of its terms, is updated
+     * before a search can find the new entries. Set it before start() to see every batch the
+     * ingestion thread applies.
+     *
+     * @param listener The hook, or null for none.
+     */
+    public void setListener(Consumer<? super List<KBEntry>> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the error that stopped the ingestion thread, if any.
+     *
+     * @return The error, or null while ingestion is healthy.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Restores the tree to where ingestion stopped: loads the checkpoint snapshot, if there is
+     * one, and replays the batches in the log after it. A batch only partly written when the
+     * process died is cut off the log. Without a log, ingestion starts from the beginning of the file.
+     *
+     * @return The number of entries restored.
+     * @throws IOException If the log or snapshot cannot be read, or the log names a checkpoint whose snapshot is missing.
+     */
+    public synchronized long recover() throws IOException {
+        if (logChannel != null) {
+            throw new IllegalStateException("Ingestion has already started");
+        }
+        if (!Files.exists(log)) {
+            writeLogHeader(log, 0);
+            logChannel = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            return 0;
+        }
+
+        long restored = 0;
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = readFully(channel, 0, HEADER_BYTES);
+            if (header == null || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a knowledge base ingestion log: " + log);
+            }
+            offset = header.getLong(8);
+            if (offset > 0) {
+                if (snapshotFile == null || !Files.exists(snapshotFile)) {
+                    throw new IOException("Checkpoint snapshot missing for log " + log);
+                }
+                List<KBEntry> entries = new ArrayList<>();
+                KBSnapshot.open(snapshotFile).forEach(entries::add);
+                notifyListener(entries);
+                tree.putAll(entries, entry -> entry.term);
+                restored += entries.size();
+            }
+
+            // Replay every intact record, and cut off a torn one at the end
+            long position = HEADER_BYTES;
+            ByteBuffer recordHeader;
+            while ((recordHeader = readFully(channel, position, RECORD_HEADER_BYTES)) != null) {
+                int length = recordHeader.getInt(0);
+                ByteBuffer payload = length >= 0 ? readFully(channel, position + RECORD_HEADER_BYTES, length) : null;
+                if (payload == null || checksum(payload) != recordHeader.getInt(4)) {
+                    break;
+                }
+                restored += apply(payload.array(), length);
+                offset = recordHeader.getLong(8);
+                position += RECORD_HEADER_BYTES + length;
+            }
+            channel.truncate(position);
+            channel.force(false);
+        }
+        logChannel = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return restored;
+    }
+
+    /**
+     * Starts following the knowledge base file on a background thread. Calls recover() first if
+     * it has not been called.
+     *
+     * @param pollMillis How long to wait between checks when the file has not grown.
+     * @throws IOException If recovery fails.
+     */
+    public synchronized void start(long pollMillis) throws IOException {
+        if (logChannel == null) {
+            recover();
+        }
+        running = true;
+        ingestionThread = new Thread(() -> follow(pollMillis), "kb-ingester");
+        ingestionThread.setDaemon(true);
+        ingestionThread.start();
+    }
+
+    private void follow(long pollMillis) {
+        try {
+            while (running) {
+                if (!ingestOnce()) {
+                    // close() unparks the thread to end the wait early; it may also wake spuriously
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(pollMillis));
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Reads, logs and applies one batch of the complete lines appended to the file since the last
+     * batch. Called by the ingestion thread, or directly to ingest without one.
+     *
+     * @return Whether there were new lines.
+     * @throws IOException If the file cannot be read, has been truncated, or the log cannot be written.
+     */
+    public synchronized boolean ingestOnce() throws IOException {
+        if (logChannel == null) {
+            recover();
+        }
+        byte[] lines;
+        int length;
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < offset) {
+                throw new IOException("Knowledge base file shrank below the ingested offset: " + source);
+            }
+            if (size == offset) {
+                return false;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_SIZE, size - offset));
+            length = lastLineEnd(channel, buffer);
+            if (length == 0) {
+                return false; // Only part of a line has been written so far
+            }
+            lines = buffer.array();
+        }
+
+        // Log the batch before applying it
+        long end = offset + length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length);
+        record.putInt(length).putInt(checksum(ByteBuffer.wrap(lines, 0, length))).putLong(end).put(lines, 0, length);
+        record.flip();
+        while (record.hasRemaining()) {
+            logChannel.write(record);
+        }
+        logChannel.force(false);
+
+        apply(lines, length);
+        offset = end;
+        lastAppliedMillis = System.currentTimeMillis();
+        if (snapshotFile != null && logChannel.size() >= checkpointBytes) {
+            checkpoint();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the new bytes after the current offset into a buffer, growing it until it holds at
+     * least one complete line or the end of the file.
+     *
+     * @return The number of bytes up to and including the last newline read, or 0 if there is none yet.
+     */
+    private int lastLineEnd(FileChannel channel, ByteBuffer buffer) throws IOException {
+        long size = channel.size();
+        while (true) {
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) {
+                // Keep reading until the buffer is full or the file ends
+            }
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return i + 1;
+                }
+            }
+            if (buffer.hasRemaining() || offset + buffer.position() >= size) {
+                return 0;
+            }
+            // A single line longer than the buffer
+            ByteBuffer larger = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8, 2L * buffer.capacity()));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    /**
+     * Parses a batch of lines and applies the entries to the tree: with putAll, which rebuilds
+     * the tree, when the batch is large next to the tree, and with single puts otherwise.
+     *
+     * @return The number of entries applied.
+     */
+    private int apply(byte[] lines, int length) {
+        List<KBEntry> entries = new ArrayList<>();
+        int lineStart = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || lines[i] == '\n') {
+                int lineEnd = i > lineStart && lines[i - 1] == '\r' ? i - 1 : i;
+                if (lineEnd > lineStart) {
+                    KBEntry entry = KBEntry.parse(new String(lines, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+                    if (entry != null) {
+                        entries.add(entry);
+                    } else {
+                        malformedLineCount++;
+                    }
+                }
+                lineStart = i + 1;
+            }
+        }
+        notifyListener(entries);
+        if (entries.size() > tree.size() / 4) {
+            tree.putAll(entries, entry -> entry.term);
+        } else {
+            for (KBEntry entry : entries) {
+                tree.put(entry.term, entry);
+            }
+        }
+        appliedLineCount += entries.size();
+        return entries.size();
+    }
+
+    private void notifyListener(List<KBEntry> entries) {
+        Consumer<? super List<KBEntry>> current = listener;
+        if (current != null && !entries.isEmpty()) {
+            current.accept(entries);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the tree and replaces the log with an empty one starting from the
+     * current offset. Each file is written under a temporary name and renamed into place, snapshot
+     * first, so a crash at any point leaves a snapshot and a log that together restore the tree.
+     *
+     * @throws IOException If the snapshot or log cannot be written.
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (snapshotFile == null) {
+            throw new IllegalStateException("No snapshot file to checkpoint to");
+        }
+        KBSnapshot.write(tree, snapshotFile, source);
+        Path temporary = log.resolveSibling(log.getFileName() + ".tmp");
+        writeLogHeader(temporary, offset);
+        if (logChannel != null) {
+            logChannel.close();
+        }
+        try {
+            Files.move(temporary, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, log, StandardCopyOption.REPLACE_EXISTING);
+        }
+        logChannel = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void writeLogHeader(Path file, long checkpointOffset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putLong(checkpointOffset).flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Reads a number of bytes at a position.
+     *
+     * @return The bytes, or null if the file ends first.
+     */
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static int checksum(ByteBuffer bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Stops the ingestion thread, waiting for the batch in progress, and closes the log. The
+     * thread is woken from its wait between polls but never interrupted, since an interrupt
+     * during a write to the log would close the log channel under it.
+     *
+     * @throws IOException If the thread stopped with an error, or the log cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        Thread thread = ingestionThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while stopping ingestion");
+            }
+        }
+        synchronized (this) {
+            if (logChannel != null) {
+                logChannel.close();
+                logChannel = null;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+//HLDZUH001
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class for reading knowledge base and query files. Files are memory-mapped and scanned
+ * for tab and newline bytes directly, and only the fields of well-formed lines are decoded.
+ */
+class KBLoader {
+    // Bytes mapped at a time; files larger than this are read in consecutive windows
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private int lineCount = 0; // Number of non-blank lines read by the last load
+    private int malformedLineCount = 0; // Number of lines skipped by the last load
+    private byte[] scratch = new byte[256]; // Reused buffer for copying fields out of the mapping
+
+    /**
+     * Functional interface for handling a single line of a mapped file.
+     */
+    private interface LineHandler {
+        void line(MappedByteBuffer buffer, int start, int end);
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public int getMalformedLineCount() {
+        return malformedLineCount;
+    }
+
+    /**
+     * Loads the knowledge base entries from a file in the format term\tstatement\tconfidence.
+     * Blank lines are ignored, and lines that do not have exactly three fields or whose
+     * confidence is not a number are counted as malformed and skipped.
+     *
+     * @param fileName The name of the file containing the knowledge base.
+     * @return The entries in file order.
+     * @throws IOException If the file cannot be read.
+     */
+    public List<KBEntry> load(String fileName) throws IOException {
+        List<KBEntry> entries = new ArrayList<>();
+        lineCount = 0;
+        malformedLineCount = 0;
+        scan(fileName, (buffer, start, end) -> {
+            if (start == end) {
+                return; // Blank line
+            }
+            lineCount++;
+            KBEntry entry = parse(buffer, start, end);
+            if (entry != null) {
+                entries.add(entry);
+            } else {
+                malformedLineCount++;
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Reads every line of a file, trimmed of surrounding whitespace.
+     *
+     * @param fileName The name of the file to read.
+     * @return The lines in file order.
+     * @throws IOException If the file cannot be read.
+     */
+    public List<String> readLines(String fileName) throws IOException {
+        List<String> lines = new ArrayList<>();
+        scan(fileName, (buffer, start, end) -> lines.add(decode(buffer, start, end).trim()));
+        return lines;
+    }
+
+    /**
+     * Maps a file window by window and hands every line to the handler, without its line terminator.
+     *
+     * @param fileName The name of the file to scan.
+     * @param handler  The handler to call for each line.
+     * @throws IOException If the file cannot be read, or contains a line longer than a window.
+     */
+    private void scan(String fileName, LineHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long position = 0;
+            while (position < fileSize) {
+                long remaining = fileSize - position;
+                boolean lastWindow = remaining <= WINDOW_SIZE;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        lastWindow ? remaining : WINDOW_SIZE);
+                int limit = buffer.limit();
+
+                int lineStart = 0;
+                for (int i = 0; i < limit; i++) {
+                    if (buffer.get(i) == '\n') {
+                        handleLine(buffer, lineStart, i, handler);
+                        lineStart = i + 1;
+                    }
+                }
+                if (lastWindow) {
+                    if (lineStart < limit) {
+                        handleLine(buffer, lineStart, limit, handler); // Final line without a newline
+                    }
+                } else if (lineStart == 0) {
+                    throw new IOException("Line longer than " + WINDOW_SIZE + " bytes in " + fileName);
+                }
+                position += lastWindow ? limit : lineStart; // Next window starts at the unfinished line
+            }
+        }
+    }
+
+    private void handleLine(MappedByteBuffer buffer, int start, int end, LineHandler handler) {
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        handler.line(buffer, start, end);
+    }
+
+    /**
+     * Parses a knowledge base line straight from the mapped bytes.
+     *
+     * @param buffer The mapped file window.
+     * @param start  Index of the first byte of the line.
+     * @param end    Index one past the last byte of the line.
+     * @return The parsed entry, or null if the line is malformed.
+     */
+    private KBEntry parse(MappedByteBuffer buffer, int start, int end) {
+        int firstTab = -1;
+        int secondTab = -1;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == '\t') {
+                if (firstTab < 0) {
+                    firstTab = i;
+                } else if (secondTab < 0) {
+                    secondTab = i;
+                } else {
+                    return null; // More than three fields
+                }
+            }
+        }
+        if (secondTab < 0) {
+            return null;
+        }
+
+        double confidence;
+        try {
+            confidence = Double.parseDouble(decode(buffer, secondTab + 1, end));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new KBEntry(decode(buffer, start, firstTab), decode(buffer, firstTab + 1, secondTab), confidence);
+    }
+
+    private String decode(MappedByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        buffer.get(start, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,350 @@
+//HLDZUH001
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Class for a server answering term lookups over TCP from a knowledge base loaded once. One
+ * thread serves every connection through a selector. Lookups take microseconds, so they run on
+ * that thread too.
+ *
+ * <p>Clients may pipeline: send several requests without waiting, and read the responses, which
+ * come back in request order. Every frame, both ways, is a big-endian int giving the length of
+ * the rest of the frame, followed by:
+ * <ul>
+ * <li>A request: an opcode byte, which is OP_GET, the number of terms as an int, and each term
+ * as an unsigned short length and its UTF-8 bytes.</li>
+ * <li>A response: a status byte. After STATUS_OK come the number of results as an int, and for
+ * each term in order a result byte: NOT_FOUND, FOUND, or FOUND_OTHER when the entry is for
+ * another term, such as the nearest one to a missed query. FOUND_OTHER is followed by that term
+ * as an unsigned short length and UTF-8 bytes, and both found results by the statement as an int
+ * length and UTF-8 bytes and the confidence as a double. After STATUS_ERROR comes a message as an
+ * unsigned short length and UTF-8 bytes, and the server closes the connection.</li>
+ * </ul>
+ * No frame may be longer than MAX_FRAME_BYTES. A request whose response would be longer is
+ * answered with STATUS_ERROR, so a client sending very large batches must split them.
+ */
+class KBServer implements Closeable {
+    static final byte OP_GET = 1; // Look up a batch of terms
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    static final byte NOT_FOUND = 0;
+    static final byte FOUND = 1;
+    static final byte FOUND_OTHER = 2;
+    static final int MAX_FRAME_BYTES = 1 << 24; // Largest frame either side may send
+    private static final int BUFFER_BYTES = 1 << 16; // Starting size of each connection's input buffer
+    private static final int MAX_PENDING_BYTES = 1 << 22; // Unsent output at which a connection stops being read
+
+    private final Function<List<String>, List<KBEntry>> lookup; // Answers a batch of terms in order
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private Thread serverThread;
+    private volatile boolean running = false;
+    private final LongAdder connectionCount = new LongAdder(); // Connections accepted
+    private final LongAdder requestCount = new LongAdder(); // Requests answered
+    private final LongAdder termCount = new LongAdder(); // Terms looked up
+
+    /**
+     * Class holding the state of one client connection.
+     */
+    private static final class Connection {
+        ByteBuffer input = ByteBuffer.allocate(BUFFER_BYTES); // Bytes received but not yet handled, in write mode
+        final Deque<ByteBuffer> output = new ArrayDeque<>(); // Responses not yet fully sent
+        int pendingBytes = 0; // Bytes left to send in output
+        boolean closing = false; // Whether to close once the output is sent
+    }
+
+    /**
+     * Constructs a KBServer and binds it to an address. It does not accept connections until started.
+     *
+     * @param lookup  Function answering a batch of terms with the entry for each, or null, in order.
+     *                It is called only from the server thread.
+     * @param address The address to listen on, with port 0 for any free port.
+     * @throws IOException If the address cannot be bound.
+     */
+    public KBServer(Function<List<String>, List<KBEntry>> lookup, InetSocketAddress address) throws IOException {
+        this.lookup = lookup;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public long getConnectionCount() {
+        return connectionCount.sum();
+    }
+
+    public long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    public long getTermCount() {
+        return termCount.sum();
+    }
+
+    /**
+     * Summarises the traffic so far.
+     *
+     * @return A one-line report of connections, requests and terms.
+     */
+    public String getStats() {
+        return String.format("Server: %d connections, %d requests, %d terms", connectionCount.sum(),
+                requestCount.sum(), termCount.sum());
+    }
+
+    /**
+     * Starts serving on a background thread, which keeps the JVM running until the server is closed.
+     */
+    public synchronized void start() {
+        if (serverThread != null) {
+            throw new IllegalStateException("The server has already been started");
+        }
+        running = true;
+        serverThread = new Thread(this::serve, "kb-server");
+        serverThread.start();
+    }
+
+    private void serve() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                break;
+            }
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+                SelectionKey key = selected.next();
+                selected.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    close(key); // The client went away or sent something unusable
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            close(key);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection());
+        connectionCount.increment();
+    }
+
+    /**
+     * Reads what the client has sent and answers every complete request in it, in order.
+     */
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(connection.input) < 0) {
+            close(key);
+            return;
+        }
+
+        ByteBuffer input = connection.input.flip();
+        while (!connection.closing && input.remaining() >= 4) {
+            int length = input.getInt(input.position());
+            if (length < 1 || length > MAX_FRAME_BYTES) {
+                fail(connection, "Bad frame length: " + length);
+                break;
+            }
+            if (input.remaining() < 4 + length) {
+                if (input.capacity() < 4 + length) {
+                    connection.input = ByteBuffer.allocate(4 + length).put(input);
+                    connection.input.flip();
+                    input = connection.input;
+                }
+                break; // Wait for the rest of the frame
+            }
+            ByteBuffer frame = input.slice(input.position() + 4, length);
+            input.position(input.position() + 4 + length);
+            answer(connection, frame);
+        }
+        input.compact();
+        write(key);
+    }
+
+    /**
+     * Answers one request frame.
+     */
+    private void answer(Connection connection, ByteBuffer frame) {
+        List<String> terms;
+        try {
+            if (frame.get() != OP_GET) {
+                fail(connection, "Unknown opcode: " + frame.get(0));
+                return;
+            }
+            int count = frame.getInt();
+            if (count < 0 || count > frame.remaining() / 2) {
+                fail(connection, "Bad term count: " + count);
+                return;
+            }
+            terms = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] term = new byte[Short.toUnsignedInt(frame.getShort())];
+                frame.get(term);
+                terms.add(new String(term, StandardCharsets.UTF_8));
+            }
+        } catch (RuntimeException e) { // The frame ended early
+            fail(connection, "Malformed request");
+            return;
+        }
+
+        List<KBEntry> results = lookup.apply(terms);
+        requestCount.increment();
+        termCount.add(terms.size());
+
+        byte[][] statements = new byte[results.size()][];
+        byte[][] otherTerms = new byte[results.size()][];
+        long length = 1 + 4;
+        for (int i = 0; i < statements.length; i++) {
+            KBEntry entry = results.get(i);
+            length += 1;
+            if (entry != null) {
+                statements[i] = entry.statement.getBytes(StandardCharsets.UTF_8);
+                length += 4 + statements[i].length + 8;
+                if (!entry.term.equals(terms.get(i))) {
+                    otherTerms[i] = entry.term.getBytes(StandardCharsets.UTF_8);
+                    length += 2 + otherTerms[i].length;
+                }
+            }
+        }
+        if (length > MAX_FRAME_BYTES) {
+            // The client could not read it, so it must send fewer terms per request
+            fail(connection, "Response too large: " + length + " bytes for " + terms.size() + " terms");
+            return;
+        }
+        ByteBuffer response = ByteBuffer.allocate(4 + (int) length);
+        response.putInt((int) length).put(STATUS_OK).putInt(statements.length);
+        for (int i = 0; i < statements.length; i++) {
+            if (statements[i] == null) {
+                response.put(NOT_FOUND);
+                continue;
+            }
+            if (otherTerms[i] == null) {
+                response.put(FOUND);
+            } else {
+                response.put(FOUND_OTHER).putShort((short) otherTerms[i].length).put(otherTerms[i]);
+            }
+            response.putInt(statements[i].length).put(statements[i]).putDouble(results.get(i).confidence);
+        }
+        queue(connection, response.flip());
+    }
+
+    private void fail(Connection connection, String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer response = ByteBuffer.allocate(4 + 1 + 2 + bytes.length);
+        response.putInt(1 + 2 + bytes.length).put(STATUS_ERROR).putShort((short) bytes.length).put(bytes);
+        queue(connection, response.flip());
+        connection.closing = true;
+    }
+
+    private void queue(Connection connection, ByteBuffer response) {
+        connection.output.add(response);
+        connection.pendingBytes += response.remaining();
+    }
+
+    /**
+     * Sends as much queued output as the socket takes, and chooses what to wait for next: more
+     * requests, room to send the rest, or, while too much output is waiting, only room to send.
+     */
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        while (!connection.output.isEmpty()) {
+            ByteBuffer next = connection.output.peek();
+            connection.pendingBytes -= channel.write(next);
+            if (next.hasRemaining()) {
+                break;
+            }
+            connection.output.poll();
+        }
+        if (connection.output.isEmpty() && connection.closing) {
+            close(key);
+            return;
+        }
+        int interest = connection.output.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+        if (!connection.closing && connection.pendingBytes < MAX_PENDING_BYTES) {
+            interest |= SelectionKey.OP_READ;
+        }
+        key.interestOps(interest);
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Nothing more can be done for this connection
+        }
+    }
+
+    /**
+     * Stops the server, closing every connection, and waits for the server thread to finish.
+     *
+     * @throws IOException If the selector cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        Thread thread;
+        synchronized (this) {
+            thread = serverThread;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while stopping the server");
+            }
+        }
+        serverChannel.close();
+        selector.close();
+    }
+}
@@ -0,0 +1,402 @@
+//HLDZUH001
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Class for a knowledge base snapshot: a file holding a built tree in a form that is memory-mapped
+ * and searched where it lies, so opening one takes milliseconds whatever the size of the knowledge
+ * base. The file is a header, a table of fixed-size node records in term order, and an arena of
+ * UTF-8 text. The node table is the in-order layout of a perfectly balanced tree, so a search
+ * descends it by halving the range and visits the same nodes as in a bulk-loaded AVLTree.
+ * Terms are ordered by Unicode code point, as in ArenaAVLTree.
+ *
+ * <p>Header, 64 bytes, big-endian: magic "GKBS", format version, entry count, a reserved int,
+ * arena offset, arena length, size and modification time of the knowledge base file it was built
+ * from, CRC32C of the node table, CRC32C of the arena, CRC32C of the header up to that point.
+ * Node record, 24 bytes: arena offset of the term (long), term length and statement length in
+ * bytes (ints), and confidence (double). The term is followed in the arena by the statement.
+ */
+class KBSnapshot {
+    private static final int MAGIC = 0x474B4253; // "GKBS"
+    private static final int VERSION = 1; // Format version, bumped whenever the layout changes
+    private static final int HEADER_BYTES = 64;
+    private static final int HEADER_CHECKSUM = 56; // Position of the header checksum
+    private static final int NODE_BYTES = 24;
+    private static final int NODE_WINDOW_BITS = 25; // 2^25 node records, 768 MB, are mapped at a time
+    private static final int ARENA_WINDOW_BITS = 30; // 1 GB of the arena is mapped at a time
+    private static final long ARENA_WINDOW = 1L << ARENA_WINDOW_BITS; // No text record crosses a window
+    private static final Comparator<String> CODE_POINT_ORDER = ArenaAVLTree::compareCodePoints;
+
+    private final int count; // Number of entries
+    private final long sourceSize; // Size of the knowledge base file the snapshot was built from
+    private final long sourceModified; // Modification time of that file, in milliseconds
+    private final int nodeChecksum; // CRC32C of the node table
+    private final int arenaChecksum; // CRC32C of the arena
+    private final MappedByteBuffer[] nodes; // Node table windows
+    private final MappedByteBuffer[] arena; // Arena windows
+    private final LongAdder searchOpCount = new LongAdder(); // Counter for search operations, safe across threads
+
+    private KBSnapshot(ByteBuffer header, MappedByteBuffer[] nodes, MappedByteBuffer[] arena) {
+        count = header.getInt(8);
+        sourceSize = header.getLong(32);
+        sourceModified = header.getLong(40);
+        nodeChecksum = header.getInt(48);
+        arenaChecksum = header.getInt(52);
+        this.nodes = nodes;
+        this.arena = arena;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getSearchOpCount() {
+        return searchOpCount.intValue();
+    }
+
+    /**
+     * Writes a snapshot of a tree. The file is written under a temporary name and then moved into
+     * place, so a reader never sees a partly written snapshot.
+     *
+     * @param tree   The tree to write.
+     * @param file   The snapshot file to create or replace.
+     * @param source The knowledge base file the tree was loaded from, whose size and modification
+     *               time are recorded to detect a stale snapshot later.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(AVLTree<String, KBEntry> tree, Path file, Path source) throws IOException {
+        List<KBEntry> entries = new ArrayList<>(tree.size());
+        tree.forEach((term, entry) -> entries.add(entry));
+        entries.sort((a, b) -> CODE_POINT_ORDER.compare(a.term, b.term)); // Linear when already in this order
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+            // Node table, after room for the header
+            CRC32C nodeCrc = new CRC32C();
+            channel.position(HEADER_BYTES);
+            long textOffset = 0;
+            for (KBEntry entry : entries) {
+                int termLength = entry.term.getBytes(StandardCharsets.UTF_8).length;
+                int statementLength = entry.statement.getBytes(StandardCharsets.UTF_8).length;
+                textOffset = place(textOffset, termLength + statementLength);
+                if (buffer.remaining() < NODE_BYTES) {
+                    flush(channel, buffer, nodeCrc);
+                }
+                buffer.putLong(textOffset).putInt(termLength).putInt(statementLength).putDouble(entry.confidence);
+                textOffset += termLength + statementLength;
+            }
+            flush(channel, buffer, nodeCrc);
+
+            // Arena, padded wherever a record would otherwise cross a window
+            CRC32C arenaCrc = new CRC32C();
+            long arenaLength = 0;
+            for (KBEntry entry : entries) {
+                byte[] term = entry.term.getBytes(StandardCharsets.UTF_8);
+                byte[] statement = entry.statement.getBytes(StandardCharsets.UTF_8);
+                for (long padding = place(arenaLength, term.length + statement.length) - arenaLength; padding > 0; padding--) {
+                    write(channel, buffer, new byte[1], arenaCrc);
+                    arenaLength++;
+                }
+                write(channel, buffer, term, arenaCrc);
+                write(channel, buffer, statement, arenaCrc);
+                arenaLength += term.length + statement.length;
+            }
+            flush(channel, buffer, arenaCrc);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(entries.size()).putInt(0);
+            header.putLong(HEADER_BYTES + (long) entries.size() * NODE_BYTES).putLong(arenaLength);
+            header.putLong(Files.size(source)).putLong(Files.getLastModifiedTime(source).toMillis());
+            header.putInt((int) nodeCrc.getValue()).putInt((int) arenaCrc.getValue());
+            CRC32C headerCrc = new CRC32C();
+            headerCrc.update(header.array(), 0, HEADER_CHECKSUM);
+            header.putInt((int) headerCrc.getValue());
+            header.clear();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(false);
+        }
+
+        try {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Finds where a text record of a given length goes in the arena: at the given offset, or at
+     * the start of the next window if it would otherwise cross into it.
+     *
+     * @return The arena offset of the record.
+     * @throws IOException If the record is larger than a window.
+     */
+    private static long place(long offset, int length) throws IOException {
+        if (length > ARENA_WINDOW) {
+            throw new IOException("Entry of " + length + " bytes is too large for a snapshot");
+        }
+        long windowEnd = (offset | (ARENA_WINDOW - 1)) + 1;
+        return offset + length > windowEnd ? windowEnd : offset;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, byte[] bytes, CRC32C checksum) throws IOException {
+        if (bytes.length > buffer.remaining()) {
+            flush(channel, buffer, checksum);
+        }
+        if (bytes.length > buffer.capacity()) {
+            ByteBuffer whole = ByteBuffer.wrap(bytes);
+            whole.position(bytes.length); // As if just filled, ready for flush to flip
+            flush(channel, whole, checksum);
+        } else {
+            buffer.put(bytes);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer, CRC32C checksum) throws IOException {
+        buffer.flip();
+        checksum.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Opens a snapshot by memory-mapping it. Only the header is read and checked, so this takes
+     * the same time for any size of snapshot; call verify() to check the rest of the file.
+     *
+     * @param file The snapshot file.
+     * @return The snapshot, ready to search.
+     * @throws IOException If the file cannot be read, is not a snapshot, is of another version,
+     *                     has a corrupt header or is truncated.
+     */
+    public static KBSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Keep reading until the header is full or the file ends
+            }
+            if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+                throw new IOException("Not a knowledge base snapshot: " + file);
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported snapshot version " + header.getInt(4) + ": " + file);
+            }
+            CRC32C headerCrc = new CRC32C();
+            headerCrc.update(header.array(), 0, HEADER_CHECKSUM);
+            if ((int) headerCrc.getValue() != header.getInt(HEADER_CHECKSUM)) {
+                throw new IOException("Corrupt snapshot header: " + file);
+            }
+            int count = header.getInt(8);
+            long arenaOffset = header.getLong(16);
+            long arenaLength = header.getLong(24);
+            if (count < 0 || arenaOffset != HEADER_BYTES + (long) count * NODE_BYTES
+                    || channel.size() != arenaOffset + arenaLength) {
+                throw new IOException("Truncated snapshot: " + file);
+            }
+
+            long nodesPerWindow = 1L << NODE_WINDOW_BITS;
+            MappedByteBuffer[] nodes = new MappedByteBuffer[(int) ((count + nodesPerWindow - 1) >>> NODE_WINDOW_BITS)];
+            for (int i = 0; i < nodes.length; i++) {
+                long first = i * nodesPerWindow;
+                nodes[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * NODE_BYTES,
+                        Math.min(nodesPerWindow, count - first) * NODE_BYTES);
+            }
+            MappedByteBuffer[] arena = new MappedByteBuffer[(int) ((arenaLength + ARENA_WINDOW - 1) >>> ARENA_WINDOW_BITS)];
+            for (int i = 0; i < arena.length; i++) {
+                long start = i * ARENA_WINDOW;
+                arena[i] = channel.map(FileChannel.MapMode.READ_ONLY, arenaOffset + start,
+                        Math.min(ARENA_WINDOW, arenaLength - start));
+            }
+            return new KBSnapshot(header, nodes, arena); // Mappings stay valid after the channel is closed
+        }
+    }
+
+    /**
+     * Checks whether the snapshot was built from the current contents of a knowledge base file,
+     * judged by its size and modification time.
+     *
+     * @param source The knowledge base file.
+     * @return Whether the file is unchanged since the snapshot was written.
+     * @throws IOException If the file's attributes cannot be read.
+     */
+    public boolean isSnapshotOf(Path source) throws IOException {
+        return Files.size(source) == sourceSize && Files.getLastModifiedTime(source).toMillis() == sourceModified;
+    }
+
+    /**
+     * Checks the node table and arena against their checksums. This reads the whole file.
+     *
+     * @throws IOException If either checksum does not match.
+     */
+    public void verify() throws IOException {
+        if (checksum(nodes) != nodeChecksum || checksum(arena) != arenaChecksum) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+    }
+
+    private static int checksum(MappedByteBuffer[] windows) {
+        CRC32C crc = new CRC32C();
+        for (MappedByteBuffer window : windows) {
+            crc.update(window.duplicate().clear());
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Looks up the entry stored under a term.
+     *
+     * @param term The term to search for.
+     * @return The entry for the term, or null if the term is not present.
+     */
+    public KBEntry get(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int from = 0;
+        int to = count;
+        int steps = 0;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            steps++;
+            int comparisonResult = compare(key, mid);
+            if (comparisonResult == 0) {
+                searchOpCount.add(steps);
+                return entryAt(mid); // Term found
+            }
+            if (comparisonResult < 0) {
+                to = mid;
+            } else {
+                from = mid + 1;
+            }
+        }
+        searchOpCount.add(steps);
+        return null;
+    }
+
+    /**
+     * Looks up a whole batch of terms in one walk, as AVLTree.getAll does: the terms are sorted
+     * and deduplicated, and each node visited splits the sorted run at its term.
+     *
+     * @param terms The terms to search for.
+     * @return The entry for each term in the same order as the terms, with null for terms not present.
+     */
+    public List<KBEntry> getAll(List<String> terms) {
+        String[] unique = terms.toArray(new String[0]);
+        Arrays.sort(unique, CODE_POINT_ORDER);
+        int uniqueCount = 0;
+        for (String term : unique) {
+            if (uniqueCount == 0 || !unique[uniqueCount - 1].equals(term)) {
+                unique[uniqueCount++] = term;
+            }
+        }
+
+        KBEntry[] uniqueResults = new KBEntry[uniqueCount];
+        searchOpCount.add(resolveSorted(0, count, unique, 0, uniqueCount, uniqueResults));
+
+        // Hand the results back in the original query order
+        KBEntry[] results = new KBEntry[terms.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = uniqueResults[Arrays.binarySearch(unique, 0, uniqueCount, terms.get(i), CODE_POINT_ORDER)];
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Passes every entry to an action, in term order.
+     *
+     * @param action The action to apply to each entry.
+     */
+    public void forEach(Consumer<? super KBEntry> action) {
+        for (int node = 0; node < count; node++) {
+            action.accept(entryAt(node));
+        }
+    }
+
+    /**
+     * Resolves a range of sorted, distinct terms against the subtree laid out in a range of nodes.
+     * The recursion depth is the height of the tree.
+     *
+     * @return The number of nodes visited.
+     */
+    private int resolveSorted(int from, int to, String[] terms, int termsFrom, int termsTo, KBEntry[] results) {
+        if (from >= to || termsFrom >= termsTo) {
+            return 0;
+        }
+        int mid = (from + to) >>> 1;
+        int split = Arrays.binarySearch(terms, termsFrom, termsTo, termAt(mid), CODE_POINT_ORDER);
+        int rightFrom;
+        if (split >= 0) {
+            results[split] = entryAt(mid); // Term found
+            rightFrom = split + 1;
+        } else {
+            split = -split - 1;
+            rightFrom = split;
+        }
+        return 1 + resolveSorted(from, mid, terms, termsFrom, split, results)
+                + resolveSorted(mid + 1, to, terms, rightFrom, termsTo, results);
+    }
+
+    private int compare(byte[] key, int node) {
+        ByteBuffer window = nodes[node >>> NODE_WINDOW_BITS];
+        int position = (node & ((1 << NODE_WINDOW_BITS) - 1)) * NODE_BYTES;
+        long offset = window.getLong(position);
+        int length = window.getInt(position + 8);
+        ByteBuffer text = arena[(int) (offset >>> ARENA_WINDOW_BITS)];
+        int start = (int) (offset & (ARENA_WINDOW - 1));
+        int common = Math.min(key.length, length);
+        for (int i = 0; i < common; i++) {
+            int difference = (key[i] & 0xff) - (text.get(start + i) & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return key.length - length;
+    }
+
+    private String termAt(int node) {
+        return decode(node, false).term;
+    }
+
+    private KBEntry entryAt(int node) {
+        return decode(node, true);
+    }
+
+    /**
+     * Decodes a node record and its text.
+     *
+     * @param node          The node to decode.
+     * @param withStatement Whether to decode the statement too, or leave it empty.
+     * @return A new entry holding the node's data.
+     */
+    private KBEntry decode(int node, boolean withStatement) {
+        ByteBuffer window = nodes[node >>> NODE_WINDOW_BITS];
+        int position = (node & ((1 << NODE_WINDOW_BITS) - 1)) * NODE_BYTES;
+        long offset = window.getLong(position);
+        int termLength = window.getInt(position + 8);
+        int statementLength = withStatement ? window.getInt(position + 12) : 0;
+        byte[] bytes = new byte[termLength + statementLength];
+        arena[(int) (offset >>> ARENA_WINDOW_BITS)].get((int) (offset & (ARENA_WINDOW - 1)), bytes);
+        return new KBEntry(new String(bytes, 0, termLength, StandardCharsets.UTF_8),
+                new String(bytes, termLength, statementLength, StandardCharsets.UTF_8), window.getDouble(position + 16));
+    }
+}
@@ -0,0 +1,190 @@
+//HLDZUH001
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Class for a bounded least-recently-used cache in front of a tree's lookups, so repeated
+ * hot keys skip the tree descent. Keys that are not in the tree are cached too, so repeated
+ * misses are as cheap as repeated hits. Writes must go through the cache, which drops the keys
+ * they change. A version number stops a lookup that raced with a write from caching what it read.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+class LookupCache<K extends Comparable<K>, V> {
+    private static final Object ABSENT = new Object(); // Cached in place of a value for a key not in the tree
+
+    private final OrderedIndex<K, V> tree; // Tree the lookups are answered from
+    private final int capacity; // Most keys cached at once
+    private final LinkedHashMap<K, Object> cache; // Cached values in least-recently-used order, guarded by itself
+    private long version = 0; // Number of writes so far, guarded by the cache
+    private long hitCount = 0; // Lookups answered with a cached value
+    private long negativeHitCount = 0; // Lookups answered with a cached absence
+    private long missCount = 0; // Lookups that searched the tree
+    private long evictionCount = 0; // Keys dropped to make room
+    private long invalidationCount = 0; // Keys dropped because a write changed them
+
+    /**
+     * Constructs a LookupCache.
+     *
+     * @param tree     The tree to answer lookups from.
+     * @param capacity The most keys to cache at once.
+     */
+    public LookupCache(OrderedIndex<K, V> tree, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        this.tree = tree;
+        this.capacity = capacity;
+        cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Object> eldest) {
+                if (size() > LookupCache.this.capacity) {
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public OrderedIndex<K, V> getTree() {
+        return tree;
+    }
+
+    /**
+     * Looks up the value stored under a key, from the cache if possible.
+     *
+     * @param key The key to search for.
+     * @return The value for the key, or null if the key is not present.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        long readVersion;
+        synchronized (cache) {
+            Object cached = cache.get(key);
+            if (cached == ABSENT) {
+                negativeHitCount++;
+                return null;
+            }
+            if (cached != null) {
+                hitCount++;
+                return (V) cached;
+            }
+            missCount++;
+            readVersion = version;
+        }
+
+        V value = tree.get(key); // Outside the lock, so misses on different keys search in parallel
+        synchronized (cache) {
+            if (version == readVersion) {
+                cache.put(key, value != null ? value : ABSENT);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Looks up a batch of keys, each through the cache.
+     *
+     * @param keys The keys to search for.
+     * @return The value for each key in the same order as the keys, with null for keys not present.
+     */
+    public List<V> getAll(List<? extends K> keys) {
+        List<V> values = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            values.add(get(key));
+        }
+        return values;
+    }
+
+    /**
+     * Puts a value into the tree and drops the key from the cache.
+     *
+     * @param key   Key to store the value under.
+     * @param value Value to be inserted.
+     */
+    public void put(K key, V value) {
+        tree.put(key, value);
+        invalidate(key);
+    }
+
+    /**
+     * Bulk loads values into the tree and empties the cache.
+     *
+     * @param values Values to be loaded, in any order.
+     * @param keyOf  Function extracting the key each value is stored under.
+     */
+    public void putAll(List<? extends V> values, Function<? super V, ? extends K> keyOf) {
+        tree.putAll(values, keyOf);
+        synchronized (cache) {
+            version++;
+            invalidationCount += cache.size();
+            cache.clear();
+        }
+    }
+
+    /**
+     * Removes a key from the tree and from the cache.
+     *
+     * @param key The key to remove.
+     * @return The removed value, or null if the key was not present.
+     */
+    public V remove(K key) {
+        V removed = tree.remove(key);
+        invalidate(key);
+        return removed;
+    }
+
+    private void invalidate(K key) {
+        synchronized (cache) {
+            version++;
+            if (cache.remove(key) != null) {
+                invalidationCount++;
+            }
+        }
+    }
+
+    /**
+     * Summarises the cache's effectiveness.
+     *
+     * @return A one-line report of hits, misses, evictions and invalidations.
+     */
+    public String getStats() {
+        synchronized (cache) {
+            long lookups = hitCount + negativeHitCount + missCount;
+            return String.format("Cache: %d lookups, %d hits, %d negative hits, %d misses (%.1f%% hit rate), "
+                    + "%d evictions, %d invalidations, %d of %d keys cached", lookups, hitCount, negativeHitCount,
+                    missCount, lookups == 0 ? 0.0 : 100.0 * (hitCount + negativeHitCount) / lookups, evictionCount,
+                    invalidationCount, cache.size(), capacity);
+        }
+    }
+
+    public long getHitCount() {
+        synchronized (cache) {
+            return hitCount;
+        }
+    }
+
+    public long getNegativeHitCount() {
+        synchronized (cache) {
+            return negativeHitCount;
+        }
+    }
+
+    public long getMissCount() {
+        synchronized (cache) {
+            return missCount;
+        }
+    }
+
+    public long getEvictionCount() {
+        synchronized (cache) {
+            return evictionCount;
+        }
+    }
+}
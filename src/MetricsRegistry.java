@@ -0,0 +1,368 @@
+//HLDZUH001
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Class for a set of named metrics read live from a running tree and application: counters,
+ * tree shape, and percentiles of the histograms a TreeStatistics records. The metrics are read
+ * only when collected, so registering them costs nothing between collections. They can be
+ * formatted as text, written to a file periodically, or published as the attributes of a JMX
+ * MBean, which tools such as JConsole can read.
+ */
+class MetricsRegistry implements Closeable {
+    // Estimated heap bytes of one AVLNode with compressed references: a header, five references and two ints
+    static final long NODE_BYTES = 40;
+    // Percentiles reported for each histogram, and the names they are reported under
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+    // Entries sampled to estimate the average heap bytes per entry
+    private static final int HEAP_SAMPLES = 64;
+
+    private final List<Consumer<Map<String, Number>>> sources = new ArrayList<>(); // Each adds its metrics when collected
+    private ScheduledExecutorService dumper; // Thread writing the metrics file, if started
+    private ObjectName mbeanName; // Name the metrics are published under in JMX, if registered
+
+    /**
+     * Adds a metric read every time the metrics are collected.
+     *
+     * @param name  The metric's name.
+     * @param value Reads the metric's current value.
+     */
+    public synchronized void gauge(String name, Supplier<? extends Number> value) {
+        sources.add(metrics -> metrics.put(name, value.get()));
+    }
+
+    /**
+     * Adds a group of metrics collected together, for a source that is costly to read once per metric.
+     *
+     * @param source Adds its metrics, by name, to the map it is given.
+     */
+    public synchronized void group(Consumer<Map<String, Number>> source) {
+        sources.add(source);
+    }
+
+    /**
+     * Adds the count, mean, percentiles and maximum of a histogram, as name.count, name.mean,
+     * name.p50 and so on. They are left out while the histogram has no samples.
+     *
+     * @param name      The prefix of the metrics' names.
+     * @param histogram Reads the histogram as it is now.
+     */
+    public void histogram(String name, Supplier<Histogram> histogram) {
+        group(metrics -> {
+            Histogram current = histogram.get();
+            if (current.getCount() == 0) {
+                return;
+            }
+            metrics.put(name + ".count", current.getCount());
+            metrics.put(name + ".mean", current.getMean());
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                metrics.put(name + "." + PERCENTILE_NAMES[i], current.getPercentile(PERCENTILES[i]));
+            }
+            metrics.put(name + ".max", current.getMax());
+        });
+    }
+
+    /**
+     * Adds the size, height and operation counts of a tree of any engine.
+     *
+     * @param name The prefix of the metrics' names.
+     * @param tree The tree.
+     */
+    public <K extends Comparable<K>, V> void tree(String name, OrderedIndex<K, V> tree) {
+        group(metrics -> {
+            int size = tree.size();
+            metrics.put(name + ".size", size);
+            metrics.put(name + ".height", tree.getHeight());
+            metrics.put(name + ".searches", tree.getSearchOpCount());
+            metrics.put(name + ".inserts", tree.getInsertOpCount());
+        });
+    }
+
+    /**
+     * Adds the metrics of tree(name, tree), plus the most an AVL tree of that size may have,
+     * 1.4405 log2(n + 2) - 0.3277, and the least any binary tree may have, log2(n + 1). A height
+     * near the upper bound after loading points to an adversarial insertion order. The heap
+     * estimate counts the nodes, plus the average size of a sample of entries times the number
+     * of entries.
+     *
+     * @param name       The prefix of the metrics' names.
+     * @param tree       The tree.
+     * @param entryBytes Estimates the heap bytes held by a key and its value, beyond the node.
+     */
+    public <K extends Comparable<K>, V> void tree(String name, AVLTree<K, V> tree,
+                                                  ToLongFunction<? super Map.Entry<K, V>> entryBytes) {
+        tree(name, tree);
+        group(metrics -> {
+            int size = tree.size();
+            metrics.put(name + ".heightMin", (int) Math.ceil(log2(size + 1.0)));
+            metrics.put(name + ".heightMax", (int) Math.floor(1.4405 * log2(size + 2.0) - 0.3277));
+            metrics.put(name + ".heapBytes", size * (NODE_BYTES + sampleEntryBytes(tree, entryBytes)));
+        });
+    }
+
+    /**
+     * Adds the size, height and search count of a snapshot. Its node table is laid out as a
+     * perfectly balanced tree, so the height is the least any binary tree of its size may have.
+     *
+     * @param name     The prefix of the metrics' names.
+     * @param snapshot The snapshot.
+     */
+    public void snapshot(String name, KBSnapshot snapshot) {
+        group(metrics -> {
+            int size = snapshot.size();
+            metrics.put(name + ".size", size);
+            metrics.put(name + ".height", (int) Math.ceil(log2(size + 1.0)));
+            metrics.put(name + ".searches", snapshot.getSearchOpCount());
+        });
+    }
+
+    /**
+     * Adds the depth and time histograms of single searches and inserts a TreeStatistics
+     * records, with search hits and misses, and rotations by case, each once there has been one.
+     *
+     * @param name       The prefix of the metrics' names.
+     * @param statistics The statistics.
+     */
+    public void statistics(String name, TreeStatistics statistics) {
+        histogram(name + ".searchNanos", statistics::getSearchNanos);
+        histogram(name + ".searchDepth", statistics::getSearchDepths);
+        histogram(name + ".insertNanos", statistics::getInsertNanos);
+        histogram(name + ".insertDepth", statistics::getInsertDepths);
+        group(metrics -> {
+            long hits = statistics.getSearchHitCount();
+            long searches = statistics.getSearchDepths().getCount();
+            if (searches > 0) {
+                metrics.put(name + ".searchHits", hits);
+                metrics.put(name + ".searchMisses", searches - hits);
+            }
+            // A bulk loaded AVL tree never rotates, so the rotations are left out until there is one
+            Map<String, Number> rotations = new LinkedHashMap<>();
+            long total = 0;
+            for (TreeInstrumentation.Rotation rotation : TreeInstrumentation.Rotation.values()) {
+                long count = statistics.getRotationCount(rotation);
+                rotations.put(name + ".rotations." + rotation, count);
+                total += count;
+            }
+            if (total > 0) {
+                metrics.putAll(rotations);
+            }
+        });
+    }
+
+    private static <K extends Comparable<K>, V> long sampleEntryBytes(AVLTree<K, V> tree,
+                                                                      ToLongFunction<? super Map.Entry<K, V>> entryBytes) {
+        int size = tree.size();
+        int samples = Math.min(size, HEAP_SAMPLES);
+        long total = 0;
+        int sampled = 0;
+        for (int i = 0; i < samples; i++) {
+            try {
+                total += entryBytes.applyAsLong(tree.select((int) ((long) i * size / samples)));
+                sampled++;
+            } catch (IndexOutOfBoundsException e) {
+                break; // The tree shrank while it was being sampled
+            }
+        }
+        return sampled == 0 ? 0 : total / sampled;
+    }
+
+    /**
+     * Estimates the heap bytes of a String with compact strings and compressed references: the
+     * String object and its byte array, one byte per Latin-1 character and two otherwise.
+     *
+     * @param string The string.
+     * @return The estimated bytes.
+     */
+    static long stringBytes(String string) {
+        boolean latin1 = string.chars().allMatch(c -> c < 256);
+        long arrayBytes = 16 + (latin1 ? string.length() : 2L * string.length());
+        return 24 + (arrayBytes + 7) / 8 * 8;
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+
+    /**
+     * Reads every metric.
+     *
+     * @return The metrics by name, in the order they were added.
+     */
+    public Map<String, Number> collect() {
+        List<Consumer<Map<String, Number>>> current;
+        synchronized (this) {
+            current = new ArrayList<>(sources);
+        }
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        for (Consumer<Map<String, Number>> source : current) {
+            source.accept(metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * Formats every metric, one "name value" line each.
+     *
+     * @return The metrics, ending with a newline.
+     */
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Number> metric : collect().entrySet()) {
+            Number value = metric.getValue();
+            text.append(metric.getKey()).append(' ');
+            text.append(value instanceof Double ? String.format("%.1f", value.doubleValue()) : value.toString());
+            text.append(System.lineSeparator());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes the metrics to a file, replacing it through a temporary file so a reader never sees
+     * half of it.
+     *
+     * @param file The file.
+     * @throws IOException If the file cannot be written.
+     */
+    public void dump(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(temporary, format(), StandardCharsets.UTF_8);
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Starts writing the metrics to a file periodically, on a background thread. A failed write
+     * is retried at the next period.
+     *
+     * @param file         The file.
+     * @param periodMillis Time between writes.
+     */
+    public synchronized void startDumping(Path file, long periodMillis) {
+        if (dumper != null) {
+            throw new IllegalStateException("The metrics are already being written");
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            try {
+                dump(file);
+            } catch (IOException e) {
+                // Tried again at the next period
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes the metrics as the read-only attributes of an MBean on the platform MBean server.
+     *
+     * @param name The MBean's object name, such as "GenericsKB:type=Metrics".
+     * @throws JMException If the name is invalid or already taken.
+     */
+    public synchronized void registerMBean(String name) throws JMException {
+        if (mbeanName != null) {
+            throw new IllegalStateException("The metrics are already published as " + mbeanName);
+        }
+        ObjectName objectName = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), objectName);
+        mbeanName = objectName;
+    }
+
+    /**
+     * Stops writing the metrics file and withdraws the MBean.
+     */
+    @Override
+    public synchronized void close() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                // Already withdrawn
+            }
+            mbeanName = null;
+        }
+    }
+
+    /**
+     * Class exposing the registry's metrics as MBean attributes, each read when it is asked for.
+     */
+    private final class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = collect().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> metrics = collect();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (metrics.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, metrics.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList(); // Metrics are read-only
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Number> metric : collect().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(metric.getKey(), metric.getValue().getClass().getName(),
+                        metric.getKey(), true, false, false));
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Knowledge base tree metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
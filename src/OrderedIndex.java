@@ -0,0 +1,127 @@
+//HLDZUH001
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * Interface for a map from keys to values kept in key order by a balanced search tree, so the
+ * application and the experiments can run on any of the tree engines. Search and insert
+ * operation counts are the number of key comparisons made, and every engine reports its
+ * searches, inserts, removes and rotations to the same TreeInstrumentation, so engines can be
+ * compared on the same data.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+interface OrderedIndex<K extends Comparable<K>, V> {
+    // Names of the engines, as given to named()
+    List<String> ENGINES = List.of("avl", "redblack", "treap", "wavl");
+
+    /**
+     * Puts a value under a key. If the key is already present, the merge policy decides which
+     * value is kept.
+     *
+     * @param key   Key to store the value under.
+     * @param value Value to be inserted.
+     */
+    void put(K key, V value);
+
+    /**
+     * Looks up the value stored under a key.
+     *
+     * @param key The key to search for.
+     * @return The value for the key, or null if the key is not present.
+     */
+    V get(K key);
+
+    /**
+     * Removes the value stored under a key.
+     *
+     * @param key The key to remove.
+     * @return The removed value, or null if the key was not present.
+     */
+    V remove(K key);
+
+    int size();
+
+    /**
+     * Returns the height of the tree: the number of nodes on its longest path from the root.
+     *
+     * @return The height, 0 for an empty tree.
+     */
+    int getHeight();
+
+    int getSearchOpCount();
+
+    int getInsertOpCount();
+
+    void resetSearchOpCount();
+
+    void resetInsertOpCount();
+
+    /**
+     * Sets the hook told about every search, insert, remove and rotation.
+     *
+     * @param instrumentation The hook, or null to switch instrumentation off.
+     */
+    void setInstrumentation(TreeInstrumentation instrumentation);
+
+    /**
+     * Calls an action for every key and value in key order.
+     *
+     * @param action The action to call with each key and its value.
+     */
+    void forEach(BiConsumer<? super K, ? super V> action);
+
+    /**
+     * Puts values into the tree one at a time, each under the key extracted from it.
+     *
+     * @param values Values to be loaded, in any order.
+     * @param keyOf  Function extracting the key each value is stored under.
+     */
+    default void putAll(List<? extends V> values, Function<? super V, ? extends K> keyOf) {
+        for (V value : values) {
+            put(keyOf.apply(value), value);
+        }
+    }
+
+    /**
+     * Looks up a batch of keys, one at a time.
+     *
+     * @param keys The keys to search for.
+     * @return The value for each key in the same order as the keys, with null for keys not present.
+     */
+    default List<V> getAll(List<? extends K> keys) {
+        List<V> results = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            results.add(get(key));
+        }
+        return results;
+    }
+
+    /**
+     * Creates an empty tree of a named engine.
+     *
+     * @param name        "avl", "redblack", "treap" or "wavl".
+     * @param mergePolicy Function given the existing and the incoming value for a key, returning the one to keep.
+     * @return The tree.
+     * @throws IllegalArgumentException If the name is not a known engine.
+     */
+    static <K extends Comparable<K>, V> OrderedIndex<K, V> named(String name, BinaryOperator<V> mergePolicy) {
+        switch (name) {
+            case "avl":
+                return new AVLTree<>(mergePolicy);
+            case "redblack":
+                return new RedBlackTree<>(mergePolicy);
+            case "treap":
+                return new Treap<>(mergePolicy);
+            case "wavl":
+                return new WAVLTree<>(mergePolicy);
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + name);
+        }
+    }
+}
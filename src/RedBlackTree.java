@@ -0,0 +1,178 @@
+//HLDZUH001
+
+import java.util.function.BinaryOperator;
+
+/**
+ * Class representing a red-black tree. Every node is red or black, a red node has no red
+ * child, and every path from a node down to a missing child passes the same number of black
+ * nodes, so the tree is never taller than 2 log2(n + 1). That is looser than an AVL tree's
+ * bound, so searches may go a little deeper, but an insert rotates at most twice and a remove
+ * at most three times, where an AVL remove may rotate at every level.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+class RedBlackTree<K extends Comparable<K>, V> extends BalancedTree<K, V> {
+    static final int BLACK = 0;
+    static final int RED = 1;
+
+    /**
+     * Constructs an empty red-black tree in which putting a key again replaces its value.
+     */
+    public RedBlackTree() {
+        this((existing, incoming) -> incoming);
+    }
+
+    /**
+     * Constructs an empty red-black tree with the given merge policy.
+     *
+     * @param mergePolicy Function given the existing and the incoming value for a key, returning the one to keep.
+     */
+    public RedBlackTree(BinaryOperator<V> mergePolicy) {
+        super(mergePolicy);
+    }
+
+    private static boolean isRed(BalancedNode<?, ?> node) {
+        return node != null && node.balance == RED;
+    }
+
+    @Override
+    void initialize(BalancedNode<K, V> node) {
+        node.balance = RED;
+    }
+
+    /**
+     * Restores the red-black rules after a red leaf has been added. While the node's parent is
+     * also red, a red uncle lets the colours be pushed up to the grandparent; a black uncle
+     * means one or two rotations at the grandparent finish the job.
+     *
+     * @param node The new leaf.
+     */
+    @Override
+    void rebalanceInsert(BalancedNode<K, V> node) {
+        while (isRed(node.parent)) {
+            BalancedNode<K, V> parent = node.parent;
+            BalancedNode<K, V> grandparent = parent.parent; // A red node is never the root
+            if (parent == grandparent.left) {
+                BalancedNode<K, V> uncle = grandparent.right;
+                if (isRed(uncle)) {
+                    parent.balance = uncle.balance = BLACK;
+                    grandparent.balance = RED;
+                    node = grandparent;
+                    continue;
+                }
+                if (node == parent.right) {
+                    rotated(TreeInstrumentation.Rotation.LEFT_RIGHT);
+                    parent = rotateLeft(parent);
+                } else {
+                    rotated(TreeInstrumentation.Rotation.LEFT_LEFT);
+                }
+                parent.balance = BLACK;
+                grandparent.balance = RED;
+                rotateRight(grandparent);
+            } else {
+                BalancedNode<K, V> uncle = grandparent.left;
+                if (isRed(uncle)) {
+                    parent.balance = uncle.balance = BLACK;
+                    grandparent.balance = RED;
+                    node = grandparent;
+                    continue;
+                }
+                if (node == parent.left) {
+                    rotated(TreeInstrumentation.Rotation.RIGHT_LEFT);
+                    parent = rotateRight(parent);
+                } else {
+                    rotated(TreeInstrumentation.Rotation.RIGHT_RIGHT);
+                }
+                parent.balance = BLACK;
+                grandparent.balance = RED;
+                rotateLeft(grandparent);
+            }
+            break;
+        }
+        root.balance = BLACK;
+    }
+
+    @Override
+    void delete(BalancedNode<K, V> node) {
+        BalancedNode<K, V> target = unlinkTarget(node);
+        boolean black = !isRed(target);
+        BalancedNode<K, V> parent = target.parent;
+        BalancedNode<K, V> child = splice(target);
+        if (black) {
+            rebalanceDelete(child, parent);
+        }
+    }
+
+    /**
+     * Restores the red-black rules after a black node has been unlinked, leaving the paths
+     * through its place one black node short. The shortfall is moved up the tree by
+     * recolouring the sibling, until a red node absorbs it or rotations at the parent fill it.
+     *
+     * @param node   The node in the unlinked node's place, which may be null.
+     * @param parent The node's parent.
+     */
+    private void rebalanceDelete(BalancedNode<K, V> node, BalancedNode<K, V> parent) {
+        while (node != root && !isRed(node)) {
+            if (node == parent.left) {
+                BalancedNode<K, V> sibling = parent.right; // Never null, since it has black nodes below to match
+                if (isRed(sibling)) {
+                    rotated(TreeInstrumentation.Rotation.RIGHT_RIGHT);
+                    sibling.balance = BLACK;
+                    parent.balance = RED;
+                    rotateLeft(parent);
+                    sibling = parent.right;
+                }
+                if (!isRed(sibling.left) && !isRed(sibling.right)) {
+                    sibling.balance = RED;
+                    node = parent;
+                    parent = node.parent;
+                    continue;
+                }
+                if (!isRed(sibling.right)) {
+                    rotated(TreeInstrumentation.Rotation.RIGHT_LEFT);
+                    sibling.left.balance = BLACK;
+                    sibling.balance = RED;
+                    sibling = rotateRight(sibling);
+                } else {
+                    rotated(TreeInstrumentation.Rotation.RIGHT_RIGHT);
+                }
+                sibling.balance = parent.balance;
+                parent.balance = BLACK;
+                sibling.right.balance = BLACK;
+                rotateLeft(parent);
+            } else {
+                BalancedNode<K, V> sibling = parent.left;
+                if (isRed(sibling)) {
+                    rotated(TreeInstrumentation.Rotation.LEFT_LEFT);
+                    sibling.balance = BLACK;
+                    parent.balance = RED;
+                    rotateRight(parent);
+                    sibling = parent.left;
+                }
+                if (!isRed(sibling.left) && !isRed(sibling.right)) {
+                    sibling.balance = RED;
+                    node = parent;
+                    parent = node.parent;
+                    continue;
+                }
+                if (!isRed(sibling.left)) {
+                    rotated(TreeInstrumentation.Rotation.LEFT_RIGHT);
+                    sibling.right.balance = BLACK;
+                    sibling.balance = RED;
+                    sibling = rotateLeft(sibling);
+                } else {
+                    rotated(TreeInstrumentation.Rotation.LEFT_LEFT);
+                }
+                sibling.balance = parent.balance;
+                parent.balance = BLACK;
+                sibling.left.balance = BLACK;
+                rotateRight(parent);
+            }
+            node = root;
+        }
+        if (node != null) {
+            node.balance = BLACK;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+//HLDZUH001
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Class for replaying workload operations against a tree on several threads at once. Each
+ * thread replays its own stream as fast as it can and records the latency of every operation
+ * in its own histogram, so the threads only share the tree. A copy-on-write AVL tree is searched
+ * without locking while it is written; any other tree written on several threads is locked,
+ * shared for lookups and exclusively for writes, so the cost of that locking is measured too.
+ */
+class Replay {
+    /**
+     * Class for the outcome of a replay.
+     */
+    static final class Result {
+        final long operations; // Operations replayed on all threads
+        final long nanos; // Time from the start of the first thread to the end of the last
+        final Histogram latency; // Latency of every operation in nanoseconds
+        final long lookups; // Operations that were lookups
+        final long hits; // Lookups that found their term
+
+        Result(long operations, long nanos, Histogram latency, long lookups, long hits) {
+            this.operations = operations;
+            this.nanos = nanos;
+            this.latency = latency;
+            this.lookups = lookups;
+            this.hits = hits;
+        }
+
+        double getThroughput() {
+            return nanos == 0 ? 0 : operations * 1e9 / nanos;
+        }
+    }
+
+    /**
+     * Replays streams of operations, one thread per stream, all starting together.
+     *
+     * @param tree    The tree.
+     * @param streams The streams of operations.
+     * @return The combined counts and latencies.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    public static Result run(OrderedIndex<String, KBEntry> tree, List<List<Workload.Operation>> streams)
+            throws InterruptedException {
+        boolean writes = streams.stream().flatMap(List::stream).anyMatch(Workload.Operation::isWrite);
+        boolean copyOnWrite = tree instanceof AVLTree && ((AVLTree<String, KBEntry>) tree).isCopyOnWrite();
+        ReadWriteLock lock = writes && streams.size() > 1 && !copyOnWrite ? new ReentrantReadWriteLock() : null;
+        Histogram[] latencies = new Histogram[streams.size()];
+        long[] lookups = new long[streams.size()];
+        long[] hits = new long[streams.size()];
+        CountDownLatch ready = new CountDownLatch(streams.size());
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[streams.size()];
+        for (int t = 0; t < threads.length; t++) {
+            int stream = t;
+            latencies[stream] = new Histogram();
+            threads[t] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Histogram latency = latencies[stream];
+                for (Workload.Operation operation : streams.get(stream)) {
+                    long start = System.nanoTime();
+                    if (operation.isWrite()) {
+                        put(tree, lock, operation);
+                        latency.record(System.nanoTime() - start);
+                    } else {
+                        boolean found = get(tree, lock, operation.key) != null;
+                        latency.record(System.nanoTime() - start);
+                        lookups[stream]++;
+                        hits[stream] += found ? 1 : 0;
+                    }
+                }
+            }, "replay-" + t);
+            threads[t].start();
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long nanos = System.nanoTime() - start;
+
+        // join() makes each thread's counts and histogram visible here
+        Histogram latency = new Histogram();
+        long operations = 0;
+        long totalLookups = 0;
+        long totalHits = 0;
+        for (int t = 0; t < threads.length; t++) {
+            latency.add(latencies[t]);
+            operations += streams.get(t).size();
+            totalLookups += lookups[t];
+            totalHits += hits[t];
+        }
+        return new Result(operations, nanos, latency, totalLookups, totalHits);
+    }
+
+    private static void put(OrderedIndex<String, KBEntry> tree, ReadWriteLock lock, Workload.Operation operation) {
+        if (lock == null) {
+            tree.put(operation.key, operation.value);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            tree.put(operation.key, operation.value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static KBEntry get(OrderedIndex<String, KBEntry> tree, ReadWriteLock lock, String key) {
+        if (lock == null) {
+            return tree.get(key);
+        }
+        lock.readLock().lock();
+        try {
+            return tree.get(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
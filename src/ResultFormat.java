@@ -0,0 +1,58 @@
+//HLDZUH001
+
+/**
+ * Interface for formatting one query result as text.
+ */
+interface ResultFormat {
+    // The application's console format: "term: statement (confidence)" or "Term not found", then a blank line.
+    // An entry for a different term than the query, found by a fuzzy search, is shown as a suggestion.
+    ResultFormat TEXT = (out, query, entry) -> {
+        if (entry != null && !entry.term.equals(query)) {
+            out.append("Term not found: \"").append(query).append("\", nearest: ");
+        }
+        if (entry != null) {
+            out.append(entry.term).append(": ").append(entry.statement).append(" (").append(entry.confidence).append(')');
+        } else {
+            out.append("Term not found: \"").append(query).append('"');
+        }
+        out.append("\n\n");
+    };
+
+    // One tab-separated line per query: query, term, statement, confidence, with empty fields on a miss
+    ResultFormat TSV = (out, query, entry) -> {
+        out.append(query).append('\t');
+        if (entry != null) {
+            out.append(entry.term).append('\t').append(entry.statement).append('\t').append(entry.confidence);
+        } else {
+            out.append("\t\t");
+        }
+        out.append('\n');
+    };
+
+    /**
+     * Appends one formatted result.
+     *
+     * @param out   The builder to append to.
+     * @param query The term that was searched for.
+     * @param entry The entry found, which may be for a nearby term after a fuzzy search, or null if none was found.
+     */
+    void format(StringBuilder out, String query, KBEntry entry);
+
+    /**
+     * Looks up a format by name.
+     *
+     * @param name "text" or "tsv".
+     * @return The format.
+     * @throws IllegalArgumentException If the name is not a known format.
+     */
+    static ResultFormat named(String name) {
+        switch (name) {
+            case "text":
+                return TEXT;
+            case "tsv":
+                return TSV;
+            default:
+                throw new IllegalArgumentException("Unknown output format: " + name);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+//HLDZUH001
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Interface for receiving query results, keeping lookups separate from how results are reported.
+ * A sink is fed from one thread and must be closed to flush what it has buffered.
+ */
+interface ResultSink extends Closeable {
+    // Discards every result, for measuring the cost of the lookups alone
+    ResultSink NONE = new ResultSink() {
+        @Override
+        public void accept(String query, KBEntry entry) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Receives the result of one query.
+     *
+     * @param query The term that was searched for.
+     * @param entry The entry found, which may be for a nearby term after a fuzzy search, or null if none was found.
+     * @throws IOException If the result cannot be written.
+     */
+    void accept(String query, KBEntry entry) throws IOException;
+
+    /**
+     * Creates a sink writing formatted results to standard output through a large buffer,
+     * rather than through a synchronized println per line. Closing it flushes standard output
+     * but leaves it open.
+     *
+     * @param format The format to write results in.
+     * @return The sink.
+     */
+    static ResultSink toStdout(ResultFormat format) {
+        Writer out = new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8);
+        return new WriterSink(new BufferedWriter(out, 1 << 16), format, false);
+    }
+
+    /**
+     * Creates a sink writing formatted results to a file, replacing any existing contents.
+     *
+     * @param fileName The name of the file to write.
+     * @param format   The format to write results in.
+     * @return The sink.
+     * @throws IOException If the file cannot be created.
+     */
+    static ResultSink toFile(String fileName, ResultFormat format) throws IOException {
+        return new WriterSink(Files.newBufferedWriter(Path.of(fileName), StandardCharsets.UTF_8), format, true);
+    }
+
+    /**
+     * Wraps a sink so that results are handed over in batches to a background thread, which
+     * feeds them to the wrapped sink. The caller only pays for filling the batch.
+     *
+     * @param sink The sink to feed on the background thread.
+     * @return The asynchronous sink.
+     */
+    static ResultSink async(ResultSink sink) {
+        return new AsyncSink(sink);
+    }
+}
+
+/**
+ * Class for a sink that formats results into a buffered writer.
+ */
+class WriterSink implements ResultSink {
+    private final Writer writer; // Buffered destination of the formatted results
+    private final ResultFormat format; // Format results are written in
+    private final boolean closeWriter; // Whether closing the sink closes the writer, or only flushes it
+    private final StringBuilder line = new StringBuilder(256); // Reused buffer for one formatted result
+
+    /**
+     * Constructs a WriterSink.
+     *
+     * @param writer      The buffered writer to write to.
+     * @param format      The format to write results in.
+     * @param closeWriter Whether closing the sink should close the writer, or only flush it.
+     */
+    public WriterSink(Writer writer, ResultFormat format, boolean closeWriter) {
+        this.writer = writer;
+        this.format = format;
+        this.closeWriter = closeWriter;
+    }
+
+    @Override
+    public void accept(String query, KBEntry entry) throws IOException {
+        line.setLength(0);
+        format.format(line, query, entry);
+        writer.append(line);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closeWriter) {
+            writer.close();
+        } else {
+            writer.flush();
+        }
+    }
+}
+
+/**
+ * Class for a sink that hands results in batches to a background thread feeding another sink.
+ */
+class AsyncSink implements ResultSink {
+    private static final int BATCH_SIZE = 1024; // Results handed over at a time
+    private static final Object[] END = new Object[0]; // Tells the background thread to stop
+
+    private final ResultSink sink; // Sink fed on the background thread
+    private final BlockingQueue<Object[]> queue = new ArrayBlockingQueue<>(16); // Batches waiting to be written
+    private final Thread writerThread; // Background thread draining the queue
+    private volatile IOException failure; // First error raised by the wrapped sink
+    // Query and entry pairs being filled by the caller; a null query marks the end of a short batch
+    private Object[] batch = new Object[BATCH_SIZE * 2];
+    private int count = 0;
+
+    /**
+     * Constructs an AsyncSink and starts its background thread.
+     *
+     * @param sink The sink to feed on the background thread.
+     */
+    public AsyncSink(ResultSink sink) {
+        this.sink = sink;
+        writerThread = new Thread(this::drain, "result-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void accept(String query, KBEntry entry) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        batch[count++] = query;
+        batch[count++] = entry;
+        if (count == batch.length) {
+            handOff(batch);
+            batch = new Object[BATCH_SIZE * 2];
+            count = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (count > 0) {
+            handOff(batch);
+            count = 0;
+        }
+        handOff(END);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for results to be written");
+        }
+        sink.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void handOff(Object[] results) throws IOException {
+        try {
+            queue.put(results);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing results to the writer thread");
+        }
+    }
+
+    /**
+     * Feeds queued batches to the wrapped sink until told to stop. After an error the
+     * remaining batches are discarded, so the caller never blocks on a full queue.
+     */
+    private void drain() {
+        try {
+            Object[] results;
+            while ((results = queue.take()) != END) {
+                for (int i = 0; i < results.length && results[i] != null && failure == null; i += 2) {
+                    try {
+                        sink.accept((String) results[i], (KBEntry) results[i + 1]);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Result writer thread interrupted");
+        }
+    }
+}
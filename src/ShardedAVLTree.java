@@ -0,0 +1,498 @@
+//HLDZUH001
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Class for an index split by key range into several AVL trees, or shards, so that loading and
+ * writing run on several cores instead of through a single root. Shard boundaries are sampled
+ * from the first bulk load, each shard is built on its own thread, and every lookup is routed to
+ * the one shard that can hold its key. Range scans run through the shards in key order. If the
+ * shards grow uneven, rebalance() moves the boundaries to even them out again.
+ *
+ * <p>Writes to different shards run in parallel. Lookups never lock: they read the current
+ * boundaries and shards through one volatile field, which a rebalance replaces only once the new
+ * shards are complete, so a lookup always sees a whole layout, old or new. Within a shard, a
+ * lookup alongside a write is only safe because every shard is a copy-on-write AVLTree, which
+ * the constructor checks.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+class ShardedAVLTree<K extends Comparable<K>, V> implements OrderedIndex<K, V> {
+    private static final int SAMPLES_PER_SHARD = 64; // Keys sampled per shard to place the boundaries
+
+    private final int shardCount; // Number of shards aimed for
+    private final Supplier<AVLTree<K, V>> shardFactory; // Creates each empty shard
+    private volatile Layout<K, V> layout; // Current boundaries and shards
+    // Held shared by writers, which each lock their own shard, and exclusively by bulk loads and rebalances
+    private final ReadWriteLock resharding = new ReentrantReadWriteLock();
+    private volatile boolean frozen = false; // Whether the index has been made read-only
+    private int retiredSearchOpCount = 0; // Search operations counted by shards since replaced
+    private int retiredInsertOpCount = 0; // Insert operations counted by shards since replaced
+    private TreeInstrumentation instrumentation = null; // Hook given to every shard, including later ones
+
+    /**
+     * Class holding one version of the shards and the boundaries between them. It is never
+     * changed once published.
+     */
+    private static final class Layout<K extends Comparable<K>, V> {
+        final Object[] boundaries; // Lowest key of each shard after the first, ascending
+        final AVLTree<K, V>[] shards; // Shards in key order, one more than there are boundaries
+
+        Layout(Object[] boundaries, AVLTree<K, V>[] shards) {
+            this.boundaries = boundaries;
+            this.shards = shards;
+        }
+
+        /**
+         * Finds the shard that holds a key.
+         *
+         * @return The index of the shard.
+         */
+        int shardOf(Object key) {
+            int index = Arrays.binarySearch(boundaries, key);
+            return index >= 0 ? index + 1 : -index - 1;
+        }
+    }
+
+    /**
+     * Constructs an empty ShardedAVLTree. Until the first bulk load places the boundaries, all
+     * keys go to the first shard.
+     *
+     * @param shardCount   The number of shards to split the keys into.
+     * @param shardFactory Creates each empty shard, which sets the merge policy. Shards must be in copy-on-write mode.
+     * @throws IllegalArgumentException If the shard count is not positive, or the factory makes a shard that is not
+     *                                  in copy-on-write mode.
+     */
+    public ShardedAVLTree(int shardCount, Supplier<AVLTree<K, V>> shardFactory) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+        }
+        this.shardCount = shardCount;
+        this.shardFactory = shardFactory;
+        layout = new Layout<>(new Object[0], newShards(1));
+    }
+
+    private AVLTree<K, V>[] newShards(int count) {
+        AVLTree<K, V>[] shards = newTreeArray(count);
+        for (int i = 0; i < count; i++) {
+            shards[i] = shardFactory.get();
+            if (!shards[i].isCopyOnWrite()) {
+                throw new IllegalArgumentException("Shards must be copy-on-write AVL trees, so lookups never wait for writes");
+            }
+            shards[i].setInstrumentation(instrumentation);
+        }
+        return shards;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>, V> AVLTree<K, V>[] newTreeArray(int length) {
+        return (AVLTree<K, V>[]) new AVLTree<?, ?>[length];
+    }
+
+    public int size() {
+        int size = 0;
+        for (AVLTree<K, V> shard : layout.shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the height of the tallest shard. A lookup also binary searches the boundaries
+     * to find its shard, which this does not count.
+     *
+     * @return The height, 0 for an empty index.
+     */
+    public int getHeight() {
+        return Arrays.stream(layout.shards).mapToInt(AVLTree::getHeight).max().orElse(0);
+    }
+
+    public int getShardCount() {
+        return layout.shards.length;
+    }
+
+    /**
+     * Returns the number of keys in each shard.
+     *
+     * @return The sizes, in key order.
+     */
+    public int[] getShardSizes() {
+        return Arrays.stream(layout.shards).mapToInt(AVLTree::size).toArray();
+    }
+
+    public int getSearchOpCount() {
+        resharding.readLock().lock();
+        try {
+            int count = retiredSearchOpCount;
+            for (AVLTree<K, V> shard : layout.shards) {
+                count += shard.getSearchOpCount();
+            }
+            return count;
+        } finally {
+            resharding.readLock().unlock();
+        }
+    }
+
+    public int getInsertOpCount() {
+        resharding.readLock().lock();
+        try {
+            int count = retiredInsertOpCount;
+            for (AVLTree<K, V> shard : layout.shards) {
+                count += shard.getInsertOpCount();
+            }
+            return count;
+        } finally {
+            resharding.readLock().unlock();
+        }
+    }
+
+    public void resetSearchOpCount() {
+        resharding.writeLock().lock();
+        try {
+            retiredSearchOpCount = 0;
+            for (AVLTree<K, V> shard : layout.shards) {
+                shard.resetSearchOpCount();
+            }
+        } finally {
+            resharding.writeLock().unlock();
+        }
+    }
+
+    public void resetInsertOpCount() {
+        resharding.writeLock().lock();
+        try {
+            retiredInsertOpCount = 0;
+            for (AVLTree<K, V> shard : layout.shards) {
+                shard.resetInsertOpCount();
+            }
+        } finally {
+            resharding.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the hook told about every search, insert, remove and rotation in any shard, now or
+     * after a rebalance. It should be set before the index is shared between threads.
+     *
+     * @param instrumentation The hook, or null to switch instrumentation off.
+     */
+    public void setInstrumentation(TreeInstrumentation instrumentation) {
+        resharding.writeLock().lock();
+        try {
+            this.instrumentation = instrumentation;
+            for (AVLTree<K, V> shard : layout.shards) {
+                shard.setInstrumentation(instrumentation);
+            }
+        } finally {
+            resharding.writeLock().unlock();
+        }
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Makes every shard read-only, and with them the index.
+     */
+    public void freeze() {
+        resharding.writeLock().lock();
+        try {
+            frozen = true;
+            for (AVLTree<K, V> shard : layout.shards) {
+                shard.freeze();
+            }
+        } finally {
+            resharding.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Puts a value into the shard owning its key. Puts to different shards run in parallel.
+     *
+     * @param key   Key to store the value under.
+     * @param value Value to be inserted.
+     */
+    public void put(K key, V value) {
+        resharding.readLock().lock();
+        try {
+            Layout<K, V> current = layout;
+            current.shards[current.shardOf(key)].put(key, value);
+        } finally {
+            resharding.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a key from the shard owning it.
+     *
+     * @param key The key to remove.
+     * @return The removed value, or null if the key was not present.
+     */
+    public V remove(K key) {
+        resharding.readLock().lock();
+        try {
+            Layout<K, V> current = layout;
+            return current.shards[current.shardOf(key)].remove(key);
+        } finally {
+            resharding.readLock().unlock();
+        }
+    }
+
+    /**
+     * Bulk loads values into the index on the common pool, as putAll(values, keyOf, pool) does.
+     *
+     * @param values Values to be loaded, in any order.
+     * @param keyOf  Function extracting the key each value is stored under.
+     */
+    public void putAll(List<? extends V> values, Function<? super V, ? extends K> keyOf) {
+        putAll(values, keyOf, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Bulk loads values into the index. If it is empty, the shard boundaries are first placed
+     * at evenly spaced keys from a sample of the values. The values are then split by shard and
+     * every shard bulk loads its part at the same time.
+     *
+     * @param values Values to be loaded, in any order.
+     * @param keyOf  Function extracting the key each value is stored under.
+     * @param pool   The pool the shards are loaded on.
+     */
+    public void putAll(List<? extends V> values, Function<? super V, ? extends K> keyOf, ForkJoinPool pool) {
+        resharding.writeLock().lock();
+        try {
+            checkNotFrozen();
+            if (size() == 0) {
+                Object[] boundaries = sampleBoundaries(values, keyOf);
+                layout = new Layout<>(boundaries, newShards(boundaries.length + 1));
+            }
+            Layout<K, V> current = layout;
+
+            // Find every value's shard in parallel, then deal the values out in input order
+            int[] shardOf = new int[values.size()];
+            pool.submit(() -> IntStream.range(0, shardOf.length).parallel()
+                    .forEach(i -> shardOf[i] = current.shardOf(keyOf.apply(values.get(i)))))
+                    .join();
+            List<List<V>> parts = new ArrayList<>(current.shards.length);
+            for (int i = 0; i < current.shards.length; i++) {
+                parts.add(new ArrayList<>());
+            }
+            for (int i = 0; i < shardOf.length; i++) {
+                parts.get(shardOf[i]).add(values.get(i));
+            }
+            pool.submit(() -> IntStream.range(0, current.shards.length).parallel()
+                    .forEach(shard -> current.shards[shard].putAll(parts.get(shard), keyOf)))
+                    .join();
+        } finally {
+            resharding.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Places the shard boundaries at evenly spaced keys from a sample of the values, taken at a
+     * fixed stride so the same values always give the same boundaries.
+     *
+     * @return The distinct boundaries, in ascending order.
+     */
+    private Object[] sampleBoundaries(List<? extends V> values, Function<? super V, ? extends K> keyOf) {
+        int sampleCount = (int) Math.min(values.size(), (long) shardCount * SAMPLES_PER_SHARD);
+        Object[] sample = new Object[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            sample[i] = keyOf.apply(values.get((int) ((long) i * values.size() / sampleCount)));
+        }
+        Arrays.sort(sample);
+        List<Object> boundaries = new ArrayList<>();
+        Object previous = sampleCount > 0 ? sample[0] : null; // No boundary at the lowest key, or the first shard stays empty
+        for (int shard = 1; shard < shardCount && sampleCount > 0; shard++) {
+            Object boundary = sample[(int) ((long) shard * sampleCount / shardCount)];
+            if (compare(previous, boundary) < 0) {
+                boundaries.add(boundary);
+                previous = boundary;
+            }
+        }
+        return boundaries.toArray();
+    }
+
+    /**
+     * Evens out the shards if the largest holds more than a given multiple of the average. The
+     * new boundaries are the keys at evenly spaced ranks, found with select, and each new shard
+     * is bulk loaded from a range scan of the old ones. Writes wait while this runs; lookups
+     * carry on against the old shards until the new ones are published.
+     *
+     * @param maxSkew The largest shard size allowed, as a multiple of the average, for example 2.0.
+     * @param pool    The pool the new shards are loaded on.
+     * @return Whether the shards were rebalanced.
+     */
+    public boolean rebalance(double maxSkew, ForkJoinPool pool) {
+        resharding.writeLock().lock();
+        try {
+            checkNotFrozen();
+            Layout<K, V> old = layout;
+            int size = size();
+            int largest = Arrays.stream(old.shards).mapToInt(AVLTree::size).max().orElse(0);
+            if (size == 0 || largest <= maxSkew * size / shardCount) {
+                return false;
+            }
+
+            List<Object> boundaries = new ArrayList<>();
+            for (int shard = 1; shard < shardCount; shard++) {
+                Object boundary = keyAtRank(old, (int) ((long) shard * size / shardCount));
+                if (boundaries.isEmpty() || compare(boundaries.get(boundaries.size() - 1), boundary) < 0) {
+                    boundaries.add(boundary);
+                }
+            }
+            Layout<K, V> rebalanced = new Layout<>(boundaries.toArray(), newShards(boundaries.size() + 1));
+            pool.submit(() -> IntStream.range(0, rebalanced.shards.length).parallel().forEach(shard -> {
+                K from = shard == 0 ? null : boundaryAt(rebalanced, shard - 1);
+                K to = shard == rebalanced.boundaries.length ? null : boundaryAt(rebalanced, shard);
+                rebalanced.shards[shard].putAll(range(old, from, to).toList());
+            })).join();
+
+            for (AVLTree<K, V> shard : old.shards) {
+                retiredSearchOpCount += shard.getSearchOpCount();
+                retiredInsertOpCount += shard.getInsertOpCount();
+            }
+            layout = rebalanced;
+            return true;
+        } finally {
+            resharding.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the key at a rank across all shards.
+     *
+     * @return The key with that many smaller keys.
+     */
+    private static <K extends Comparable<K>, V> K keyAtRank(Layout<K, V> layout, int rank) {
+        for (AVLTree<K, V> shard : layout.shards) {
+            if (rank < shard.size()) {
+                return shard.select(rank).getKey();
+            }
+            rank -= shard.size();
+        }
+        throw new IndexOutOfBoundsException("Rank out of range: " + rank);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>> K boundaryAt(Layout<K, ?> layout, int index) {
+        return (K) layout.boundaries[index];
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("The sharded AVL tree is frozen and cannot be modified");
+        }
+    }
+
+    /**
+     * Looks up the value stored under a key in the shard owning it.
+     *
+     * @param key The key to search for.
+     * @return The value for the key, or null if the key is not present.
+     */
+    public V get(K key) {
+        Layout<K, V> current = layout;
+        return current.shards[current.shardOf(key)].get(key);
+    }
+
+    /**
+     * Looks up a whole batch of keys on this thread. The keys are split by shard, and each shard
+     * resolves its part in one walk with getAll.
+     *
+     * @param keys The keys to search for.
+     * @return The value for each key in the same order as the keys, with null for keys not present.
+     */
+    public List<V> getAll(List<? extends K> keys) {
+        return getAll(keys, null);
+    }
+
+    /**
+     * Looks up a whole batch of keys as getAll does, with the shards resolving their parts at
+     * the same time on the pool.
+     *
+     * @param keys The keys to search for.
+     * @param pool The pool to run the lookups on.
+     * @return The value for each key in the same order as the keys, with null for keys not present.
+     */
+    public List<V> getAllParallel(List<? extends K> keys, ForkJoinPool pool) {
+        return getAll(keys, pool);
+    }
+
+    private List<V> getAll(List<? extends K> keys, ForkJoinPool pool) {
+        Layout<K, V> current = layout;
+        int[] shardOf = new int[keys.size()];
+        List<List<K>> parts = new ArrayList<>(current.shards.length);
+        for (int i = 0; i < current.shards.length; i++) {
+            parts.add(new ArrayList<>());
+        }
+        for (int i = 0; i < shardOf.length; i++) {
+            shardOf[i] = current.shardOf(keys.get(i));
+            parts.get(shardOf[i]).add(keys.get(i));
+        }
+        List<List<V>> partResults;
+        if (pool == null) {
+            partResults = IntStream.range(0, current.shards.length)
+                    .mapToObj(shard -> current.shards[shard].getAll(parts.get(shard))).toList();
+        } else {
+            partResults = pool.submit(() -> IntStream.range(0, current.shards.length).parallel()
+                    .mapToObj(shard -> current.shards[shard].getAll(parts.get(shard))).toList())
+                    .join();
+        }
+
+        // Hand the results back in the original query order
+        int[] next = new int[current.shards.length];
+        List<V> results = new ArrayList<>(keys.size());
+        for (int shard : shardOf) {
+            results.add(partResults.get(shard).get(next[shard]++));
+        }
+        return results;
+    }
+
+    /**
+     * Calls an action for every key and value in key order, running through the shards in turn.
+     *
+     * @param action The action to call with each key and its value.
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (AVLTree<K, V> shard : layout.shards) {
+            shard.forEach(action);
+        }
+    }
+
+    /**
+     * Streams the keys and values in a range lazily, in key order, running through each shard
+     * that overlaps the range in turn.
+     *
+     * @param from The lowest key to include, or null to start at the first key.
+     * @param to   The key to stop before, or null to run to the last key.
+     * @return The sequential stream.
+     */
+    public Stream<Map.Entry<K, V>> range(K from, K to) {
+        return range(layout, from, to);
+    }
+
+    private static <K extends Comparable<K>, V> Stream<Map.Entry<K, V>> range(Layout<K, V> layout, K from, K to) {
+        int first = from == null ? 0 : layout.shardOf(from);
+        int last = to == null ? layout.shards.length - 1 : layout.shardOf(to);
+        return IntStream.rangeClosed(first, last).mapToObj(shard -> layout.shards[shard])
+                .flatMap(shard -> shard.range(from, to));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>> int compare(Object a, Object b) {
+        return ((K) a).compareTo((K) b);
+    }
+}
@@ -0,0 +1,254 @@
+//HLDZUH001
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class for the compact storage of knowledge base text. Terms are interned as CompactTerms, so
+ * each distinct term is held once as UTF-8. Statements are encoded in two steps:
+ * <ul>
+ * <li>A statement that opens with its own term, as most GenericsKB statements do ("Albatrosses
+ * have faces." for "albatross"), stores a mode byte in place of those characters.</li>
+ * <li>With dictionary encoding, the rest of the statement is split at spaces and each word is
+ * stored as the varint number of its entry in a dictionary shared by all statements. Without
+ * it, the rest is stored as UTF-8.</li>
+ * </ul>
+ * Entries are encoded while loading and decoded only when a statement is read. The maps used to
+ * find terms and words while encoding can be dropped with trim() once loading is done.
+ *
+ * <p>Encoding is serialized. trim() also publishes the dictionary as it then stands, which is
+ * never changed afterwards, so statements can be decoded on any number of threads without
+ * locking. Until then, or after a later encode adds a word, decoding takes the store's lock.
+ */
+class TermStore {
+    // Modes stored in the first byte of an encoded statement
+    private static final byte NO_PREFIX = 0; // The statement does not open with its term
+    private static final byte TERM_PREFIX = 1; // The statement opens with its term as it is
+    private static final byte CAPITALIZED_PREFIX = 2; // The statement opens with its term capitalized
+
+    private final boolean dictionaryEncoded; // Whether statement words are replaced by dictionary numbers
+    private Map<CompactTerm, CompactTerm> terms = new HashMap<>(); // Interned terms, or null once trimmed
+    private Map<String, Integer> wordNumbers = new HashMap<>(); // Number of each word, or null once trimmed
+    private byte[] wordBytes = new byte[1 << 12]; // Dictionary words in UTF-8, one after another
+    private int[] wordStarts = new int[1 << 10]; // Start of each word in wordBytes, and of the next free byte
+    private int wordCount = 0; // Number of words in the dictionary
+    private long statementCount = 0; // Statements encoded
+    private long rawStatementBytes = 0; // UTF-8 size of the statements encoded
+    private long encodedStatementBytes = 0; // Size of the statements once encoded
+    private volatile Words words = null; // Dictionary published by trim(), or null if words were added since
+
+    /**
+     * Class holding a published copy of the dictionary, which is never changed.
+     */
+    private static final class Words {
+        final byte[] bytes; // Dictionary words in UTF-8, one after another
+        final int[] starts; // Start of each word in bytes, and the end of the last
+
+        Words(byte[] bytes, int[] starts) {
+            this.bytes = bytes;
+            this.starts = starts;
+        }
+
+        String at(int number) {
+            return new String(bytes, starts[number], starts[number + 1] - starts[number], StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Constructs an empty TermStore.
+     *
+     * @param dictionaryEncoded Whether to encode statement words as dictionary numbers, or keep them as UTF-8.
+     */
+    public TermStore(boolean dictionaryEncoded) {
+        this.dictionaryEncoded = dictionaryEncoded;
+    }
+
+    /**
+     * Returns the one shared copy of a term, adding it if it is new. Terms interned after a
+     * trim are not shared with those interned before it.
+     *
+     * @param term The term.
+     * @return The interned term.
+     */
+    public synchronized CompactTerm intern(String term) {
+        if (terms == null) {
+            terms = new HashMap<>();
+        }
+        CompactTerm compact = new CompactTerm(term);
+        CompactTerm interned = terms.putIfAbsent(compact, compact);
+        return interned != null ? interned : compact;
+    }
+
+    /**
+     * Encodes an entry, interning its term.
+     *
+     * @param entry The entry to encode.
+     * @return The compact entry.
+     */
+    public synchronized CompactEntry encode(KBEntry entry) {
+        String statement = entry.statement;
+        String term = entry.term;
+        byte mode = NO_PREFIX;
+        if (!term.isEmpty() && statement.startsWith(term)) {
+            mode = TERM_PREFIX;
+        } else if (!term.isEmpty() && statement.startsWith(capitalize(term))) {
+            mode = CAPITALIZED_PREFIX;
+        }
+        String rest = mode == NO_PREFIX ? statement : statement.substring(term.length());
+
+        byte[] encoded;
+        if (dictionaryEncoded) {
+            String[] restWords = rest.split(" ", -1);
+            encoded = new byte[1 + 5 * restWords.length];
+            int length = 1;
+            for (String word : restWords) {
+                length = writeVarint(encoded, length, numberOf(word));
+            }
+            encoded = Arrays.copyOf(encoded, length);
+        } else {
+            byte[] bytes = rest.getBytes(StandardCharsets.UTF_8);
+            encoded = new byte[1 + bytes.length];
+            System.arraycopy(bytes, 0, encoded, 1, bytes.length);
+        }
+        encoded[0] = mode;
+
+        statementCount++;
+        rawStatementBytes += statement.getBytes(StandardCharsets.UTF_8).length;
+        encodedStatementBytes += encoded.length;
+        return new CompactEntry(intern(term), encoded, entry.confidence);
+    }
+
+    /**
+     * Finds the dictionary number of a word, adding the word if it is new.
+     */
+    private int numberOf(String word) {
+        if (wordNumbers == null) {
+            wordNumbers = new HashMap<>();
+            for (int number = 0; number < wordCount; number++) {
+                wordNumbers.put(wordAt(number), number);
+            }
+        }
+        Integer number = wordNumbers.get(word);
+        if (number == null) {
+            words = null; // The published dictionary lacks the new word
+            byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+            int end = wordStarts[wordCount];
+            if (end + bytes.length > wordBytes.length) {
+                wordBytes = Arrays.copyOf(wordBytes, Math.max(2 * wordBytes.length, end + bytes.length));
+            }
+            if (wordCount + 2 > wordStarts.length) {
+                wordStarts = Arrays.copyOf(wordStarts, 2 * wordStarts.length);
+            }
+            System.arraycopy(bytes, 0, wordBytes, end, bytes.length);
+            number = wordCount++;
+            wordStarts[wordCount] = end + bytes.length;
+            wordNumbers.put(word, number);
+        }
+        return number;
+    }
+
+    private String wordAt(int number) {
+        return new String(wordBytes, wordStarts[number], wordStarts[number + 1] - wordStarts[number], StandardCharsets.UTF_8);
+    }
+
+    private static String capitalize(String term) {
+        return Character.toUpperCase(term.charAt(0)) + term.substring(1);
+    }
+
+    private static int writeVarint(byte[] bytes, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Drops the maps used to find terms and words while encoding, leaving only what decoding
+     * needs, shrinks the dictionary to fit, and publishes it for decoding without the lock.
+     * Encoding again rebuilds the word map.
+     */
+    public synchronized void trim() {
+        terms = null;
+        wordNumbers = null;
+        wordBytes = Arrays.copyOf(wordBytes, wordStarts[wordCount]);
+        wordStarts = Arrays.copyOf(wordStarts, wordCount + 1);
+        // Growing the dictionary copies both arrays first, so these ones are never written again
+        words = new Words(wordBytes, wordStarts);
+    }
+
+    /**
+     * Decodes the statement of an entry this store encoded. Once the store has been trimmed,
+     * this takes no lock.
+     *
+     * @param entry The entry.
+     * @return The statement.
+     */
+    public String decodeStatement(CompactEntry entry) {
+        Words published = words;
+        if (published != null) {
+            return decodeStatement(entry, published);
+        }
+        synchronized (this) {
+            return decodeStatement(entry, new Words(wordBytes, wordStarts));
+        }
+    }
+
+    private String decodeStatement(CompactEntry entry, Words dictionary) {
+        byte[] encoded = entry.statement;
+        StringBuilder statement = new StringBuilder();
+        if (encoded[0] == TERM_PREFIX) {
+            statement.append(entry.term);
+        } else if (encoded[0] == CAPITALIZED_PREFIX) {
+            statement.append(capitalize(entry.term.toString()));
+        }
+
+        if (!dictionaryEncoded) {
+            return statement.append(new String(encoded, 1, encoded.length - 1, StandardCharsets.UTF_8)).toString();
+        }
+        int position = 1;
+        while (position < encoded.length) {
+            int number = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte next = encoded[position++];
+                number |= (next & 0x7F) << shift;
+                if (next >= 0) {
+                    break;
+                }
+            }
+            statement.append(dictionary.at(number));
+            if (position < encoded.length) { // Put back the spaces the words were split at
+                statement.append(' ');
+            }
+        }
+        return statement.toString();
+    }
+
+    /**
+     * Decodes an entry this store encoded in full.
+     *
+     * @param entry The entry.
+     * @return The entry as a KBEntry.
+     */
+    public KBEntry decode(CompactEntry entry) {
+        return new KBEntry(entry.term.toString(), decodeStatement(entry), entry.confidence);
+    }
+
+    /**
+     * Summarises how much the store saves.
+     *
+     * @return A one-line report of the dictionary and statement sizes.
+     */
+    public synchronized String getStats() {
+        return String.format("Term store: %d dictionary words in %d bytes, %d statements in %d bytes from %d (%.1f%%)",
+                wordCount, wordStarts[wordCount], statementCount, encodedStatementBytes, rawStatementBytes,
+                rawStatementBytes == 0 ? 0.0 : 100.0 * encodedStatementBytes / rawStatementBytes);
+    }
+
+    public synchronized int getDictionarySize() {
+        return wordCount;
+    }
+}
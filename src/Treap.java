@@ -0,0 +1,94 @@
+//HLDZUH001
+
+import java.util.Random;
+import java.util.function.BinaryOperator;
+
+/**
+ * Class representing a treap: a search tree in which every node also has a random priority,
+ * and no node has a higher priority than its parent. The shape is then that of keys inserted
+ * in random order whatever order they really arrive in, so the expected depth of a node is
+ * about 1.39 log2(n) with no balancing data beyond the priority. Sorted or adversarial inserts
+ * cannot make it degrade, but any one search may go deeper than in an AVL tree. Priorities
+ * come from a seeded Random, so the same inserts always give the same tree.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+class Treap<K extends Comparable<K>, V> extends BalancedTree<K, V> {
+    // Seed of the priorities when none is given
+    private static final long DEFAULT_SEED = 42;
+
+    private final Random priorities; // Source of each new node's priority
+
+    /**
+     * Constructs an empty treap in which putting a key again replaces its value.
+     */
+    public Treap() {
+        this((existing, incoming) -> incoming);
+    }
+
+    /**
+     * Constructs an empty treap with the given merge policy.
+     *
+     * @param mergePolicy Function given the existing and the incoming value for a key, returning the one to keep.
+     */
+    public Treap(BinaryOperator<V> mergePolicy) {
+        this(mergePolicy, DEFAULT_SEED);
+    }
+
+    /**
+     * Constructs an empty treap with the given merge policy and seed for its priorities.
+     *
+     * @param mergePolicy Function given the existing and the incoming value for a key, returning the one to keep.
+     * @param seed        The seed.
+     */
+    public Treap(BinaryOperator<V> mergePolicy, long seed) {
+        super(mergePolicy);
+        priorities = new Random(seed);
+    }
+
+    @Override
+    void initialize(BalancedNode<K, V> node) {
+        node.balance = priorities.nextInt();
+    }
+
+    /**
+     * Rotates a new leaf up until its parent's priority is at least its own. A left child
+     * rotating up is counted as a LEFT_LEFT rotation and a right child as RIGHT_RIGHT.
+     *
+     * @param node The new leaf.
+     */
+    @Override
+    void rebalanceInsert(BalancedNode<K, V> node) {
+        while (node.parent != null && node.balance > node.parent.balance) {
+            if (node == node.parent.left) {
+                rotated(TreeInstrumentation.Rotation.LEFT_LEFT);
+                rotateRight(node.parent);
+            } else {
+                rotated(TreeInstrumentation.Rotation.RIGHT_RIGHT);
+                rotateLeft(node.parent);
+            }
+        }
+    }
+
+    /**
+     * Rotates a node down, lifting whichever child has the higher priority, until it has at
+     * most one child, then splices it out. Its key keeps its priority all the way, unlike
+     * swapping in its successor's key, so the priorities stay independent of the keys.
+     *
+     * @param node The node holding the key to remove.
+     */
+    @Override
+    void delete(BalancedNode<K, V> node) {
+        while (node.left != null && node.right != null) {
+            if (node.left.balance > node.right.balance) {
+                rotated(TreeInstrumentation.Rotation.LEFT_LEFT);
+                rotateRight(node);
+            } else {
+                rotated(TreeInstrumentation.Rotation.RIGHT_RIGHT);
+                rotateLeft(node);
+            }
+        }
+        splice(node);
+    }
+}
@@ -0,0 +1,61 @@
+//HLDZUH001
+
+/**
+ * Interface for a hook told about every operation on a tree, for measuring the tree exactly
+ * as the application runs it. The depth reported for an operation is the number of
+ * nodes visited on the way down, which is also the number of key comparisons made. Searches
+ * may report from several threads at once, so implementations must be thread-safe.
+ */
+interface TreeInstrumentation {
+    /**
+     * The four cases in which balancing a node rotates it: a single rotation lifting a child
+     * on the outside of a node, or a double rotation lifting a grandchild on the inside.
+     */
+    enum Rotation {
+        LEFT_LEFT, RIGHT_RIGHT, LEFT_RIGHT, RIGHT_LEFT
+    }
+
+    /**
+     * Called after a single key lookup.
+     *
+     * @param depth Number of nodes visited.
+     * @param found Whether the key was present.
+     * @param nanos Time taken in nanoseconds.
+     */
+    void searched(int depth, boolean found, long nanos);
+
+    /**
+     * Called after a single put, including the rebalancing on the way back up, and for every
+     * node a bulk load places.
+     *
+     * @param depth Number of nodes visited, counting the new node when one was added.
+     * @param added Whether a new node was added, rather than an existing value merged.
+     * @param nanos Time taken in nanoseconds.
+     */
+    void inserted(int depth, boolean added, long nanos);
+
+    /**
+     * Called after a remove, including the rebalancing on the way back up.
+     *
+     * @param depth   Number of nodes visited to find the key.
+     * @param removed Whether the key was present and removed.
+     * @param nanos   Time taken in nanoseconds.
+     */
+    void removed(int depth, boolean removed, long nanos);
+
+    /**
+     * Called once for every rotation made while rebalancing.
+     *
+     * @param rotation The rotation case.
+     */
+    void rotated(Rotation rotation);
+
+    /**
+     * Called after a batch lookup.
+     *
+     * @param keys         Number of keys looked up, including repeats.
+     * @param nodesVisited Number of nodes visited by the whole batch.
+     * @param nanos        Time taken in nanoseconds.
+     */
+    void batchSearched(int keys, int nodesVisited, long nanos);
+}
@@ -0,0 +1,199 @@
+//HLDZUH001
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Class collecting tree instrumentation into histograms of depth and time per operation, along
+ * with hit, miss and rotation counts. Each thread records into its own recorder, so parallel
+ * searches never contend; the recorders are combined when the statistics are read.
+ */
+class TreeStatistics implements TreeInstrumentation {
+    // Histogram slots in a recorder, one depth and one time histogram per kind of operation
+    private static final int SEARCH_DEPTH = 0;
+    private static final int SEARCH_NANOS = 1;
+    private static final int INSERT_DEPTH = 2;
+    private static final int INSERT_NANOS = 3;
+    private static final int REMOVE_DEPTH = 4;
+    private static final int REMOVE_NANOS = 5;
+    private static final int BATCH_NODES = 6;
+    private static final int BATCH_NANOS = 7;
+    private static final String[] NAMES = {"Search depth", "Search ns", "Insert depth", "Insert ns", "Remove depth",
+            "Remove ns", "Batch nodes", "Batch ns"};
+
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<>(); // Every thread's recorder
+    private final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(() -> {
+        Recorder created = new Recorder();
+        recorders.add(created);
+        return created;
+    });
+
+    /**
+     * Class holding the statistics recorded by one thread. Its lock is only contended while
+     * the statistics are being read.
+     */
+    private static class Recorder {
+        final Histogram[] histograms = new Histogram[NAMES.length];
+        final long[] rotations = new long[Rotation.values().length];
+        long hits = 0; // Searches that found their key
+        long added = 0; // Puts that added a new node
+        long removed = 0; // Removes that found their key
+
+        Recorder() {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new Histogram();
+            }
+        }
+
+        void record(int depthSlot, int depth, long nanos) {
+            histograms[depthSlot].record(depth);
+            histograms[depthSlot + 1].record(nanos);
+        }
+
+        synchronized void addTo(Recorder total) {
+            for (int i = 0; i < histograms.length; i++) {
+                total.histograms[i].add(histograms[i]);
+            }
+            for (int i = 0; i < rotations.length; i++) {
+                total.rotations[i] += rotations[i];
+            }
+            total.hits += hits;
+            total.added += added;
+            total.removed += removed;
+        }
+
+        synchronized void reset() {
+            for (Histogram histogram : histograms) {
+                histogram.reset();
+            }
+            Arrays.fill(rotations, 0);
+            hits = added = removed = 0;
+        }
+    }
+
+    @Override
+    public void searched(int depth, boolean found, long nanos) {
+        Recorder local = recorder.get();
+        synchronized (local) {
+            local.record(SEARCH_DEPTH, depth, nanos);
+            if (found) {
+                local.hits++;
+            }
+        }
+    }
+
+    @Override
+    public void inserted(int depth, boolean added, long nanos) {
+        Recorder local = recorder.get();
+        synchronized (local) {
+            local.record(INSERT_DEPTH, depth, nanos);
+            if (added) {
+                local.added++;
+            }
+        }
+    }
+
+    @Override
+    public void removed(int depth, boolean removed, long nanos) {
+        Recorder local = recorder.get();
+        synchronized (local) {
+            local.record(REMOVE_DEPTH, depth, nanos);
+            if (removed) {
+                local.removed++;
+            }
+        }
+    }
+
+    @Override
+    public void rotated(Rotation rotation) {
+        Recorder local = recorder.get();
+        synchronized (local) {
+            local.rotations[rotation.ordinal()]++;
+        }
+    }
+
+    @Override
+    public void batchSearched(int keys, int nodesVisited, long nanos) {
+        Recorder local = recorder.get();
+        synchronized (local) {
+            local.record(BATCH_NODES, nodesVisited, nanos);
+        }
+    }
+
+    /**
+     * Clears everything recorded so far, on every thread.
+     */
+    public void reset() {
+        for (Recorder each : recorders) {
+            each.reset();
+        }
+    }
+
+    private Recorder total() {
+        Recorder total = new Recorder();
+        for (Recorder each : recorders) {
+            each.addTo(total);
+        }
+        return total;
+    }
+
+    public Histogram getSearchDepths() {
+        return total().histograms[SEARCH_DEPTH];
+    }
+
+    public Histogram getSearchNanos() {
+        return total().histograms[SEARCH_NANOS];
+    }
+
+    public Histogram getInsertDepths() {
+        return total().histograms[INSERT_DEPTH];
+    }
+
+    public Histogram getInsertNanos() {
+        return total().histograms[INSERT_NANOS];
+    }
+
+    public Histogram getRemoveDepths() {
+        return total().histograms[REMOVE_DEPTH];
+    }
+
+    public Histogram getRemoveNanos() {
+        return total().histograms[REMOVE_NANOS];
+    }
+
+    public long getSearchHitCount() {
+        return total().hits;
+    }
+
+    public long getRotationCount(Rotation rotation) {
+        return total().rotations[rotation.ordinal()];
+    }
+
+    /**
+     * Formats everything recorded so far as a table, one row per histogram followed by the counts.
+     *
+     * @return The report, ending with a newline.
+     */
+    public String report() {
+        Recorder total = total();
+        StringBuilder report = new StringBuilder(String.format("%-14s %10s %10s %10s %10s %10s %10s%n",
+                "Measure", "Count", "Mean", "p50", "p99", "Max", "Min"));
+        for (int i = 0; i < NAMES.length; i++) {
+            Histogram histogram = total.histograms[i];
+            if (histogram.getCount() > 0) {
+                report.append(String.format("%-14s %10d %10.1f %10d %10d %10d %10d%n", NAMES[i], histogram.getCount(),
+                        histogram.getMean(), histogram.getPercentile(50), histogram.getPercentile(99),
+                        histogram.getMax(), histogram.getMin()));
+            }
+        }
+        long searches = total.histograms[SEARCH_DEPTH].getCount();
+        report.append(String.format("Search hits %d, misses %d; nodes added %d; keys removed %d%n", total.hits,
+                searches - total.hits, total.added, total.removed));
+        report.append("Rotations:");
+        for (Rotation rotation : Rotation.values()) {
+            report.append(' ').append(rotation).append(' ').append(total.rotations[rotation.ordinal()]);
+        }
+        return report.append(System.lineSeparator()).toString();
+    }
+}
@@ -0,0 +1,167 @@
+//HLDZUH001
+
+import java.util.function.BinaryOperator;
+
+/**
+ * Class representing a weak AVL (WAVL) tree. Every node has a rank, a missing child counts as
+ * rank -1, and each child's rank is one or two below its parent's, with every leaf at rank 0.
+ * Inserts rebalance exactly as in an AVL tree, so a tree that is only ever inserted into is an
+ * AVL tree. Removes are allowed to leave the tree a little taller, never more than
+ * 2 log2(n + 1), in exchange for at most two rotations per remove and rank changes that are
+ * O(1) amortized.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+class WAVLTree<K extends Comparable<K>, V> extends BalancedTree<K, V> {
+    /**
+     * Constructs an empty WAVL tree in which putting a key again replaces its value.
+     */
+    public WAVLTree() {
+        this((existing, incoming) -> incoming);
+    }
+
+    /**
+     * Constructs an empty WAVL tree with the given merge policy.
+     *
+     * @param mergePolicy Function given the existing and the incoming value for a key, returning the one to keep.
+     */
+    public WAVLTree(BinaryOperator<V> mergePolicy) {
+        super(mergePolicy);
+    }
+
+    private static int rank(BalancedNode<?, ?> node) {
+        return node == null ? -1 : node.balance;
+    }
+
+    @Override
+    void initialize(BalancedNode<K, V> node) {
+        node.balance = 0;
+    }
+
+    /**
+     * Restores the rank rule after a leaf has been added. While a node has the same rank as
+     * its parent, the parent is promoted if its other child is one rank below it, and
+     * otherwise one or two rotations finish the job.
+     *
+     * @param node The new leaf.
+     */
+    @Override
+    void rebalanceInsert(BalancedNode<K, V> node) {
+        BalancedNode<K, V> parent = node.parent;
+        while (parent != null && parent.balance == node.balance) {
+            BalancedNode<K, V> sibling = node == parent.left ? parent.right : parent.left;
+            if (parent.balance - rank(sibling) == 1) {
+                parent.balance++;
+                node = parent;
+                parent = node.parent;
+                continue;
+            }
+            // The node was just promoted, so exactly one of its children is one rank below it
+            if (node == parent.left) {
+                BalancedNode<K, V> inner = node.right;
+                if (node.balance - rank(inner) == 2) {
+                    rotated(TreeInstrumentation.Rotation.LEFT_LEFT);
+                    rotateRight(parent);
+                } else {
+                    rotated(TreeInstrumentation.Rotation.LEFT_RIGHT);
+                    rotateLeft(node);
+                    rotateRight(parent);
+                    inner.balance++;
+                    node.balance--;
+                }
+            } else {
+                BalancedNode<K, V> inner = node.left;
+                if (node.balance - rank(inner) == 2) {
+                    rotated(TreeInstrumentation.Rotation.RIGHT_RIGHT);
+                    rotateLeft(parent);
+                } else {
+                    rotated(TreeInstrumentation.Rotation.RIGHT_LEFT);
+                    rotateRight(node);
+                    rotateLeft(parent);
+                    inner.balance++;
+                    node.balance--;
+                }
+            }
+            parent.balance--;
+            return;
+        }
+    }
+
+    /**
+     * Unlinks a node and restores the rank rule. A parent left as a leaf of rank 1 is demoted.
+     * Then, while a child is three ranks below its parent, the parent is demoted, along with
+     * the sibling if neither of the sibling's children is one rank below it. Otherwise one or
+     * two rotations at the parent finish the job.
+     *
+     * @param node The node holding the key to remove.
+     */
+    @Override
+    void delete(BalancedNode<K, V> node) {
+        BalancedNode<K, V> target = unlinkTarget(node);
+        BalancedNode<K, V> parent = target.parent;
+        BalancedNode<K, V> child = splice(target);
+        if (parent == null) {
+            return;
+        }
+        if (parent.left == null && parent.right == null && parent.balance == 1) {
+            parent.balance = 0;
+            child = parent;
+            parent = child.parent;
+        }
+        while (parent != null && parent.balance - rank(child) == 3) {
+            // The child may be null, but only where the parent has no other child on that side
+            BalancedNode<K, V> sibling = parent.left == child ? parent.right : parent.left;
+            if (parent.balance - rank(sibling) == 2) {
+                parent.balance--;
+            } else if (sibling.balance - rank(sibling.left) == 2 && sibling.balance - rank(sibling.right) == 2) {
+                sibling.balance--;
+                parent.balance--;
+            } else {
+                rotateDelete(parent, sibling);
+                return;
+            }
+            child = parent;
+            parent = child.parent;
+        }
+    }
+
+    /**
+     * Finishes rebalancing a remove with one or two rotations at a node whose child on one
+     * side is three ranks below it, and whose child on the other side is one rank below it
+     * and has a child one rank below that.
+     *
+     * @param parent  The node.
+     * @param sibling The node's child one rank below it.
+     */
+    private void rotateDelete(BalancedNode<K, V> parent, BalancedNode<K, V> sibling) {
+        boolean right = sibling == parent.right;
+        BalancedNode<K, V> outer = right ? sibling.right : sibling.left;
+        BalancedNode<K, V> inner = right ? sibling.left : sibling.right;
+        if (sibling.balance - rank(outer) == 1) {
+            rotated(right ? TreeInstrumentation.Rotation.RIGHT_RIGHT : TreeInstrumentation.Rotation.LEFT_LEFT);
+            if (right) {
+                rotateLeft(parent);
+            } else {
+                rotateRight(parent);
+            }
+            sibling.balance++;
+            parent.balance--;
+            if (parent.left == null && parent.right == null) {
+                parent.balance--; // A leaf must have rank 0
+            }
+        } else {
+            rotated(right ? TreeInstrumentation.Rotation.RIGHT_LEFT : TreeInstrumentation.Rotation.LEFT_RIGHT);
+            if (right) {
+                rotateRight(sibling);
+                rotateLeft(parent);
+            } else {
+                rotateLeft(sibling);
+                rotateRight(parent);
+            }
+            inner.balance += 2;
+            sibling.balance--;
+            parent.balance -= 2;
+        }
+    }
+}
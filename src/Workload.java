@@ -0,0 +1,176 @@
+//HLDZUH001
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Class for generating reproducible workloads from the GenericsKB data: the entries to load,
+ * the order they are inserted in, and streams of mixed lookups and writes to replay. Everything
+ * is drawn from Randoms seeded by the workload's seed, so the same seed always gives the same
+ * workload.
+ */
+class Workload {
+    /**
+     * Orders entries can be inserted in.
+     */
+    enum Order {
+        UNIFORM, // Random order
+        SORTED, // Ascending term order, which rotates at almost every insert
+        ZIPFIAN, // Entries drawn with a Zipf distribution, so popular terms are inserted again and merged
+        ADVERSARIAL // Alternately the smallest and largest terms left, which needs double rotations
+    }
+
+    /**
+     * Class for one operation of a replayed workload: a lookup of a term, or a write of an entry.
+     */
+    static final class Operation {
+        final String key; // Term looked up or written
+        final KBEntry value; // Entry written, or null for a lookup
+
+        Operation(String key, KBEntry value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        boolean isWrite() {
+            return value != null;
+        }
+    }
+
+    private final List<KBEntry> dataset; // Entries the workload is drawn from
+    private final long seed; // Seed of every Random the workload draws from
+
+    /**
+     * Constructs a Workload.
+     *
+     * @param dataset The entries to draw from, with distinct terms.
+     * @param seed    The seed.
+     */
+    public Workload(List<KBEntry> dataset, long seed) {
+        this.dataset = dataset;
+        this.seed = seed;
+    }
+
+    /**
+     * Takes a random subset of the dataset without repeats. Sizes beyond the dataset are made
+     * up of further copies of it, with a copy number appended to each term, so any size up to
+     * millions of entries can be drawn.
+     *
+     * @param size The number of entries to take.
+     * @return The entries, in random order.
+     */
+    public List<KBEntry> entries(int size) {
+        List<KBEntry> entries = new ArrayList<>(size);
+        for (int copy = 0; entries.size() < size; copy++) {
+            for (KBEntry entry : dataset) {
+                entries.add(copy == 0 ? entry : new KBEntry(entry.term + "#" + copy, entry.statement, entry.confidence));
+            }
+        }
+        Collections.shuffle(entries, new Random(seed));
+        return new ArrayList<>(entries.subList(0, size));
+    }
+
+    /**
+     * Arranges entries in an insertion order.
+     *
+     * @param entries The entries.
+     * @param order   The order.
+     * @return The entries to insert, in order. For ZIPFIAN there are as many as given, with repeats.
+     */
+    public List<KBEntry> insertionOrder(List<KBEntry> entries, Order order) {
+        List<KBEntry> ordered = new ArrayList<>(entries);
+        switch (order) {
+            case UNIFORM:
+                Collections.shuffle(ordered, new Random(seed + 1));
+                return ordered;
+            case SORTED:
+                ordered.sort(Comparator.comparing(entry -> entry.term));
+                return ordered;
+            case ZIPFIAN:
+                double[] cumulative = zipfCumulative(entries.size());
+                Random random = new Random(seed + 2);
+                for (int i = 0; i < ordered.size(); i++) {
+                    ordered.set(i, entries.get(drawZipf(cumulative, random)));
+                }
+                return ordered;
+            case ADVERSARIAL:
+                ordered.sort(Comparator.comparing(entry -> entry.term));
+                List<KBEntry> alternating = new ArrayList<>(ordered.size());
+                for (int low = 0, high = ordered.size() - 1; low <= high; low++, high--) {
+                    alternating.add(ordered.get(low));
+                    if (low < high) {
+                        alternating.add(ordered.get(high));
+                    }
+                }
+                return alternating;
+            default:
+                throw new IllegalArgumentException("Unknown order: " + order);
+        }
+    }
+
+    /**
+     * Generates one stream of operations against a loaded tree. Each operation is a write with
+     * a given probability, and otherwise a lookup. Each one hits an existing term with a given
+     * probability. A hit picks a loaded term, uniformly or with a Zipf distribution. A lookup
+     * that misses asks for a term that is never inserted. A write that misses adds a new term.
+     * Streams with different numbers are independent, for replaying on several threads.
+     *
+     * @param loaded     The entries in the tree, most popular first for a Zipf distribution.
+     * @param count      The number of operations.
+     * @param writeRatio The fraction of operations that are writes, from 0 to 1.
+     * @param hitRatio   The fraction of operations on existing terms, from 0 to 1.
+     * @param zipfian    Whether hits favour popular terms, rather than picking any equally.
+     * @param stream     The number of the stream.
+     * @return The operations.
+     */
+    public List<Operation> operations(List<KBEntry> loaded, int count, double writeRatio, double hitRatio,
+                                      boolean zipfian, int stream) {
+        Random random = new Random(seed * 31 + stream + 3);
+        double[] cumulative = zipfian ? zipfCumulative(loaded.size()) : null;
+        List<Operation> operations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            KBEntry existing = loaded.get(zipfian ? drawZipf(cumulative, random) : random.nextInt(loaded.size()));
+            boolean hit = random.nextDouble() < hitRatio;
+            if (random.nextDouble() < writeRatio) {
+                // A tab can never be part of a loaded term, since it separates the fields of a line
+                String term = hit ? existing.term : existing.term + "\tw" + stream + "." + i;
+                operations.add(new Operation(term, new KBEntry(term, existing.statement, random.nextDouble())));
+            } else {
+                operations.add(new Operation(hit ? existing.term : existing.term + "\t", null));
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * Builds the running totals of the weights 1 / i of a Zipf distribution over n items.
+     *
+     * @param n The number of items.
+     * @return The totals, for drawZipf.
+     */
+    static double[] zipfCumulative(int n) {
+        double[] cumulative = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Draws an item with a Zipf distribution, so the i-th item is drawn in proportion to 1 / i.
+     *
+     * @param cumulative The totals from zipfCumulative.
+     * @param random     The source of randomness.
+     * @return The index of the item drawn.
+     */
+    static int drawZipf(double[] cumulative, Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[cumulative.length - 1]);
+        return Math.min(cumulative.length - 1, index < 0 ? -index - 1 : index);
+    }
+}